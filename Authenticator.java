@@ -0,0 +1,142 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Password checks for the login handshake. Each check costs a database
+ * lookup and a deliberately slow hash, so checks run on a small pool of
+ * their own with a bounded queue: a burst of logins waits there, or is
+ * turned away as BUSY, instead of tying up the threads that move
+ * messages.
+ *
+ * Attempts are counted per remote address and per username over a fixed
+ * window, before any hashing is done. A username's count is cleared by a
+ * successful login; an address's is not, so one valid account cannot be
+ * used to reset it while guessing others.
+ *
+ * Binary sessions that logged in get a token from SessionTokens, which
+ * they can present on reconnect instead of their password.
+ */
+public class Authenticator {
+    public enum Result { ACCEPTED, REJECTED, LOCKED_OUT, BUSY }
+
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long ATTEMPT_WINDOW_MS = 5 * 60_000;
+    private static final int MAX_ATTEMPTS_PER_ADDRESS = 30;
+    private static final int MAX_ATTEMPTS_PER_USER = 5;
+    private static final long TOKEN_LIFETIME_MS = 30 * 60_000;
+    private static final int MAX_TOKENS = 100_000;
+    private static final long PURGE_INTERVAL_SECONDS = 60;
+
+    // Attempts by one key within the current window
+    private static final class Window {
+        long start;
+        int attempts;
+
+        Window(long start) {
+            this.start = start;
+        }
+    }
+
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService purger;
+    private final ConcurrentHashMap<String, Window> byAddress = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Window> byUser = new ConcurrentHashMap<>();
+    private final SessionTokens tokens = new SessionTokens(TOKEN_LIFETIME_MS, MAX_TOKENS);
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicInteger lockedOut = new AtomicInteger();
+
+    public Authenticator(int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+                Thread thread = new Thread(r, "auth-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        purger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "auth-purge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        purger.scheduleWithFixedDelay(this::purge, PURGE_INTERVAL_SECONDS, PURGE_INTERVAL_SECONDS,
+            TimeUnit.SECONDS);
+    }
+
+    // Checks password on the worker pool and passes the result to callback on
+    // a worker thread, with a new session token when accepted and issueToken
+    // is set (only binary clients can be handed one). LOCKED_OUT and BUSY are
+    // reported on the caller's thread without hashing anything.
+    public void checkPassword(String username, String password, String address, boolean issueToken,
+                              BiConsumer<Result, String> callback) {
+        if (!countAttempt(byAddress, address, MAX_ATTEMPTS_PER_ADDRESS)
+                || !countAttempt(byUser, username, MAX_ATTEMPTS_PER_USER)) {
+            lockedOut.incrementAndGet();
+            callback.accept(Result.LOCKED_OUT, null);
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                if (JdbcConnectivity.authenticateUser(username, password)) {
+                    byUser.remove(username);
+                    accepted.incrementAndGet();
+                    callback.accept(Result.ACCEPTED, issueToken ? tokens.issue(username) : null);
+                } else {
+                    rejected.incrementAndGet();
+                    callback.accept(Result.REJECTED, null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            callback.accept(Result.BUSY, null);
+        }
+    }
+
+    // Redeems a session token; returns a replacement, or null if it was not valid
+    public String resume(String username, String token) {
+        if (!tokens.redeem(token, username)) {
+            return null;
+        }
+        accepted.incrementAndGet();
+        String next = tokens.issue(username);
+        // A full cache still lets this login through, just without a token
+        return next == null ? "" : next;
+    }
+
+    // Counts one attempt for key; false once it has used up its window
+    private static boolean countAttempt(ConcurrentHashMap<String, Window> windows, String key, int limit) {
+        long now = System.currentTimeMillis();
+        Window window = windows.computeIfAbsent(key, k -> new Window(now));
+        synchronized (window) {
+            if (now - window.start >= ATTEMPT_WINDOW_MS) {
+                window.start = now;
+                window.attempts = 0;
+            }
+            return ++window.attempts <= limit;
+        }
+    }
+
+    private void purge() {
+        long cutoff = System.currentTimeMillis() - ATTEMPT_WINDOW_MS;
+        byAddress.values().removeIf(window -> window.start < cutoff);
+        byUser.values().removeIf(window -> window.start < cutoff);
+        tokens.purgeExpired();
+    }
+
+    public String getStats() {
+        return "accepted=" + accepted.get() + " rejected=" + rejected.get() + " lockedOut=" + lockedOut.get()
+            + " queued=" + workers.getQueue().size() + " tokens=" + tokens.size();
+    }
+
+    public void shutdown() {
+        purger.shutdownNow();
+        workers.shutdownNow();
+        tokens.clear();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * One chat message as stored in the messages table. Immutable.
+ */
+public final class ChatMessage {
+    public static final String PUBLIC = "PUBLIC";
+    public static final String PRIVATE = "PRIVATE";
+    public static final String SYSTEM = "SYSTEM";
+
+    private final long id;
+    private final String sender;
+    private final String recipient;
+    private final String room;
+    private final String text;
+    private final String type;
+    private final long sentAt;
+    private final boolean delivered;
+
+    public ChatMessage(long id, String sender, String recipient, String room, String text,
+                       String type, long sentAt, boolean delivered) {
+        this.id = id;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.room = room;
+        this.text = text;
+        this.type = type;
+        this.sentAt = sentAt;
+        this.delivered = delivered;
+    }
+
+    // Database id, or 0 if not persisted yet
+    public long getId() {
+        return id;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    // Username for PRIVATE messages, otherwise null
+    public String getRecipient() {
+        return recipient;
+    }
+
+    // Room for PUBLIC messages, otherwise null
+    public String getRoom() {
+        return room;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    // Epoch millis; for PUBLIC messages also the room's sequence number,
+    // see RoomSequences
+    public long getSentAt() {
+        return sentAt;
+    }
+
+    public boolean isDelivered() {
+        return delivered;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%tF %<tT] %s: %s", sentAt, sender, text);
+    }
+}
@@ -0,0 +1,945 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.*;
+
+/**
+ * The chat server engine: accepts connections, tracks sessions and rooms,
+ * and routes messages. It has no dependency on Swing, so it can run on its
+ * own from the command line:
+ *
+ *   java ChatServer [--io=thread|virtual|nio] [--queue=N] [--overflow=...] [--persist]
+ *                   [--ping-interval=S] [--ping-timeout=S] [--idle-timeout=S] [--auth]
+ *                   [--stats-interval=S] [--port=P] [--msg-limit=RATE[:BURST]] [--byte-limit=...]
+ *                   [--user-msg-limit=...] [--user-byte-limit=...] [--flood-action=delay|drop|disconnect]
+ *                   [--node=NAME --cluster-port=P --cluster-secret=S --peers=host:port,...]
+ *                   [--cluster-bind=ADDR] [--resume-grace=S]
+ *                   [--search | --search-dir=PATH]
+ *
+ * ServerGUI is an optional front end. It observes the engine by pulling
+ * log lines from a bounded LogBuffer and roster changes from the
+ * PresenceService on a timer, so the engine never waits on the event
+ * dispatch thread.
+ *
+ * Several servers can share one chat: see Cluster.
+ */
+public class ChatServer {
+    static final int PORT = 12346;
+    // Client port; --port=P, e.g. to run several nodes on one machine
+    private static int port = PORT;
+    static final Pattern USERNAME_PATTERN = Pattern.compile("^[a-zA-Z0-9_]{3,20}$");
+
+    // How client sockets are serviced; chosen at launch with --io=thread|virtual|nio
+    enum IoMode { THREAD, VIRTUAL, NIO }
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    // Per-client outbound queue settings; --queue=N and --overflow=drop_oldest|disconnect|coalesce
+    static int outboundCapacity = 1024;
+    static OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+
+    // Write-behind message persistence; enabled with --persist
+    private static final int PERSIST_BUFFER_SIZE = 65536;
+    private static final int PERSIST_BATCH_SIZE = 500;
+    private static final long PERSIST_FLUSH_INTERVAL_MS = 200;
+    // Senders' reads are paused this long at a time while the persister is backed up
+    private static final long PERSIST_BACKPRESSURE_MS = 50;
+    private static boolean persistEnabled = false;
+    private static volatile MessagePersister persister;
+    // users.is_online / last_login updates, also written in batches
+    private static final long STATUS_FLUSH_INTERVAL_MS = 2000;
+    private static volatile StatusPersister statusPersister;
+
+    // Heartbeats, in millis: binary clients are pinged after pingInterval of
+    // silence and dropped after pingTimeout; text clients cannot answer pings
+    // and are dropped after idleTimeout (0 = never). Connections that never
+    // log in are dropped after LOGIN_TIMEOUT_MS either way.
+    static long pingIntervalMillis = 30_000;
+    static long pingTimeoutMillis = 90_000;
+    static long idleTimeoutMillis = 0;
+    static final long LOGIN_TIMEOUT_MS = 60_000;
+    // 100 ms ticks, 1024 slots: one lap is ~100 s, longer timeouts take several
+    private static final long HEARTBEAT_TICK_MS = 100;
+    private static final int HEARTBEAT_SLOTS = 1024;
+    static volatile TimerWheel heartbeatWheel;
+
+    // Password checks against the users table; enabled with --auth. Hashing
+    // runs on its own small pool, never on the threads that move messages.
+    private static final int AUTH_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static boolean authRequired = false;
+    static volatile Authenticator authenticator;
+
+    // Flood control, see FloodControl: messages and bytes per second per
+    // connection and per user, each RATE[:BURST] (0 = no limit). Per-user
+    // limits default to the per-connection ones. The byte burst has to fit
+    // the largest frame or such frames can never pass.
+    private static double[] messageLimit = {20, 50};
+    private static double[] byteLimit = {64 * 1024, FrameCodec.MAX_FRAME_LENGTH};
+    private static double[] userMessageLimit;
+    private static double[] userByteLimit;
+    private static FloodControl.Action floodAction = FloodControl.Action.DELAY;
+    static volatile FloodControl floodControl;
+
+    // Metrics are logged every statsInterval (0 = never); --stats-interval=S
+    private static long statsIntervalMillis = 60_000;
+    private static ScheduledExecutorService statsScheduler;
+
+    // Links to other server nodes; enabled with --cluster-port=P
+    // --cluster-secret=S --peers=..., listening on loopback unless
+    // --cluster-bind=ADDR
+    private static String nodeId;
+    private static int clusterPort = 0;
+    private static String clusterBind;
+    private static String clusterSecret;
+    private static final List<String> peers = new ArrayList<>();
+    static volatile Cluster cluster;
+
+    // Recent messages kept in memory per room / conversation
+    private static final int HISTORY_PER_KEY = 200;
+    private static final long HISTORY_MAX_BYTES = 64L * 1024 * 1024;
+    static final int HISTORY_REPLAY = 20;
+    // At most this many missed lines per room are replayed to a resuming client
+    static final int RESUME_REPLAY = HISTORY_PER_KEY;
+    static volatile HistoryCache historyCache = new HistoryCache(HISTORY_PER_KEY, HISTORY_MAX_BYTES, false);
+    static final RoomSequences sequences = new RoomSequences();
+
+    // Full-text index over history for /search; enabled with --search (kept
+    // in search-index/) or --search-dir=PATH
+    private static final int SEARCH_QUEUE_SIZE = 65536;
+    private static final int SEARCH_FLUSH_POSTINGS = 1_000_000;
+    private static final long SEARCH_FLUSH_INTERVAL_MS = 60_000;
+    private static String searchDirectory;
+    static volatile SearchIndex searchIndex;
+
+    // Binary clients that lose their connection reconnect on their own, so
+    // their "has left" lines are held back this long in case they resume;
+    // after a restart, resuming clients are not announced for as long
+    private static long resumeGraceMillis = 30_000;
+    private static volatile long startedMillis;
+    private static final ConcurrentHashMap<String, Departure> departures = new ConcurrentHashMap<>();
+
+    // Log lines kept for observers; older ones are overwritten
+    private static final int LOG_BUFFER_SIZE = 10_000;
+    static final LogBuffer logBuffer = new LogBuffer(LOG_BUFFER_SIZE);
+    // Also print log lines to stdout; set when running without the GUI
+    private static volatile boolean logToConsole = false;
+
+    static final String DEFAULT_ROOM = "lobby";
+
+    private static Set<ChatSession> clients = ConcurrentHashMap.newKeySet();
+    static final RoomRegistry<ChatSession> rooms = new RoomRegistry<>(ChatServer::roomChanged);
+    // Logged-in users by name, for direct delivery without scanning clients
+    static final ConcurrentHashMap<String, ChatSession> sessionsByName = new ConcurrentHashMap<>();
+    // Who is online; clients get coalesced changes every PRESENCE_INTERVAL_MS
+    private static final int PRESENCE_CHANGE_CAPACITY = 65536;
+    private static final long PRESENCE_INTERVAL_MS = 250;
+    static final PresenceService presence = new PresenceService(PRESENCE_CHANGE_CAPACITY);
+    private static ScheduledExecutorService presenceScheduler;
+    // Last presence change published to clients; only used by the presence thread
+    private static long presenceSequence;
+    private static ServerSocket serverSocket;
+    // Owns the accept loop and every ClientHandler of the current run
+    private static ExecutorService clientExecutor;
+    private static NioServer nioServer;
+    private static IoMode ioMode = IoMode.THREAD;
+    private static volatile boolean isRunning = false;
+
+    public static void main(String[] args) throws IOException {
+        configure(args);
+        logToConsole = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(ChatServer::stop, "shutdown"));
+        start();
+
+        // Lines typed on the console are broadcast like the GUI's Broadcast field
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = console.readLine()) != null) {
+            line = line.trim();
+            if (line.equals("/stop")) {
+                System.exit(0);
+            } else if (line.equals("/stats")) {
+                Metrics.snapshot().forEach(System.out::println);
+            } else if (line.startsWith("/adduser ")) {
+                // /adduser <name> <password>: creates or resets an account
+                String[] parts = line.split("\\s+", 3);
+                if (parts.length < 3 || !USERNAME_PATTERN.matcher(parts[1]).matches()) {
+                    System.out.println("Usage: /adduser <name> <password>");
+                } else {
+                    System.out.println(JdbcConnectivity.registerUser(parts[1], parts[2])
+                        ? "Saved account " + parts[1] : "Could not save account " + parts[1]);
+                }
+            } else if (!line.isEmpty()) {
+                broadcastServerMessage(line);
+            }
+        }
+    }
+
+    // Applies command-line options; shared by ChatServer and ServerGUI
+    static void configure(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--io=")) {
+                ioMode = IoMode.valueOf(arg.substring(5).toUpperCase());
+            } else if (arg.startsWith("--queue=")) {
+                outboundCapacity = Integer.parseInt(arg.substring(8));
+            } else if (arg.startsWith("--overflow=")) {
+                overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(arg.substring(11).toUpperCase());
+            } else if (arg.equals("--persist")) {
+                persistEnabled = true;
+            } else if (arg.equals("--auth")) {
+                authRequired = true;
+            } else if (arg.startsWith("--stats-interval=")) {
+                statsIntervalMillis = Long.parseLong(arg.substring(17)) * 1000;
+            } else if (arg.startsWith("--msg-limit=")) {
+                messageLimit = parseLimit(arg.substring(12));
+            } else if (arg.startsWith("--byte-limit=")) {
+                byteLimit = parseLimit(arg.substring(13));
+            } else if (arg.startsWith("--user-msg-limit=")) {
+                userMessageLimit = parseLimit(arg.substring(17));
+            } else if (arg.startsWith("--user-byte-limit=")) {
+                userByteLimit = parseLimit(arg.substring(18));
+            } else if (arg.startsWith("--flood-action=")) {
+                floodAction = FloodControl.Action.valueOf(arg.substring(15).toUpperCase());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring(7));
+            } else if (arg.startsWith("--node=")) {
+                nodeId = arg.substring(7);
+            } else if (arg.startsWith("--cluster-port=")) {
+                clusterPort = Integer.parseInt(arg.substring(15));
+            } else if (arg.startsWith("--cluster-bind=")) {
+                clusterBind = arg.substring(15);
+            } else if (arg.startsWith("--cluster-secret=")) {
+                clusterSecret = arg.substring(17);
+            } else if (arg.startsWith("--peers=")) {
+                for (String peer : arg.substring(8).split(",")) {
+                    if (!peer.isBlank()) {
+                        peers.add(peer.trim());
+                    }
+                }
+            } else if (arg.startsWith("--ping-interval=")) {
+                pingIntervalMillis = Long.parseLong(arg.substring(16)) * 1000;
+            } else if (arg.startsWith("--ping-timeout=")) {
+                pingTimeoutMillis = Long.parseLong(arg.substring(15)) * 1000;
+            } else if (arg.startsWith("--idle-timeout=")) {
+                idleTimeoutMillis = Long.parseLong(arg.substring(15)) * 1000;
+            } else if (arg.startsWith("--resume-grace=")) {
+                resumeGraceMillis = Long.parseLong(arg.substring(15)) * 1000;
+            } else if (arg.equals("--search")) {
+                searchDirectory = "search-index";
+            } else if (arg.startsWith("--search-dir=")) {
+                searchDirectory = arg.substring(13);
+            }
+        }
+    }
+
+    // RATE[:BURST]; without a burst, two seconds' worth may arrive at once
+    private static double[] parseLimit(String value) {
+        String[] parts = value.split(":");
+        double rate = Double.parseDouble(parts[0]);
+        double burst = parts.length > 1 ? Double.parseDouble(parts[1]) : Math.max(1, rate * 2);
+        return new double[] {rate, burst};
+    }
+
+    public static boolean isRunning() {
+        return isRunning;
+    }
+
+    static IoMode getIoMode() {
+        return ioMode;
+    }
+
+    static int getPort() {
+        return port;
+    }
+
+    public static synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        historyCache = new HistoryCache(HISTORY_PER_KEY, HISTORY_MAX_BYTES, persistEnabled);
+        startedMillis = System.currentTimeMillis();
+        if (persistEnabled) {
+            persister = new MessagePersister(PERSIST_BUFFER_SIZE, PERSIST_BATCH_SIZE, PERSIST_FLUSH_INTERVAL_MS);
+            persister.start();
+            statusPersister = new StatusPersister(STATUS_FLUSH_INTERVAL_MS);
+            statusPersister.start();
+        }
+        if (searchDirectory != null) {
+            SearchIndex index = new SearchIndex(Path.of(searchDirectory), SEARCH_QUEUE_SIZE,
+                SEARCH_FLUSH_POSTINGS, SEARCH_FLUSH_INTERVAL_MS);
+            try {
+                index.start();
+                searchIndex = index;
+            } catch (IOException | RuntimeException e) {
+                log("Failed to open search index in " + searchDirectory + ": " + e.getMessage());
+            }
+        }
+
+        heartbeatWheel = new TimerWheel(HEARTBEAT_TICK_MS, HEARTBEAT_SLOTS, "heartbeat");
+        heartbeatWheel.start();
+        if (authRequired) {
+            authenticator = new Authenticator(AUTH_THREADS);
+        }
+        double[] userMessages = userMessageLimit != null ? userMessageLimit : messageLimit;
+        double[] userBytes = userByteLimit != null ? userByteLimit : byteLimit;
+        if (messageLimit[0] > 0 || byteLimit[0] > 0 || userMessages[0] > 0 || userBytes[0] > 0) {
+            floodControl = new FloodControl(messageLimit[0], (long) messageLimit[1], byteLimit[0], (long) byteLimit[1],
+                userMessages[0], (long) userMessages[1], userBytes[0], (long) userBytes[1], floodAction);
+        }
+        Metrics.register(clients);
+        if (statsIntervalMillis > 0) {
+            statsScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            statsScheduler.scheduleAtFixedRate(() -> Metrics.snapshot().forEach(line -> log("[Stats] " + line)),
+                statsIntervalMillis, statsIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        if (clusterPort > 0 && (clusterSecret == null || clusterSecret.isEmpty())) {
+            log("Cluster link not started: --cluster-secret is required");
+        } else if (clusterPort > 0) {
+            try {
+                InetAddress bind = clusterBind != null ? InetAddress.getByName(clusterBind)
+                    : InetAddress.getLoopbackAddress();
+                Cluster node = new Cluster(nodeId != null ? nodeId : "node-" + port, bind, clusterPort,
+                    clusterSecret, peers);
+                node.start();
+                cluster = node;
+            } catch (IOException e) {
+                log("Failed to start cluster link: " + e.getMessage());
+            }
+        }
+
+        presenceSequence = presence.getSequence();
+        presenceScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        presenceScheduler.scheduleAtFixedRate(ChatServer::publishPresence,
+            PRESENCE_INTERVAL_MS, PRESENCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        if (ioMode == IoMode.NIO) {
+            try {
+                nioServer = new NioServer(port, Runtime.getRuntime().availableProcessors());
+                nioServer.start();
+                isRunning = true;
+                log("Server started on port " + port + " (NIO)");
+            } catch (IOException e) {
+                log("Failed to start server: " + e.getMessage());
+            }
+            return;
+        }
+
+        try {
+            serverSocket = new ServerSocket(port);
+            isRunning = true;
+            log("Server started on port " + port + " (" + ioMode + ")");
+
+            ThreadFactory factory = ioMode == IoMode.VIRTUAL
+                ? Thread.ofVirtual().name("client-", 0).factory()
+                : Thread.ofPlatform().name("client-", 0).factory();
+            ExecutorService executor = Executors.newThreadPerTaskExecutor(factory);
+            clientExecutor = executor;
+
+            executor.execute(() -> {
+                while (isRunning) {
+                    try {
+                        Socket clientSocket = serverSocket.accept();
+                        ClientHandler clientHandler = new ClientHandler(clientSocket);
+                        Metrics.connectionsAccepted.increment();
+                        clients.add(clientHandler);
+                        executor.execute(clientHandler);
+                        executor.execute(clientHandler::writeLoop);
+                    } catch (IOException | RejectedExecutionException e) {
+                        if (isRunning) {
+                            log("Server error: " + e.getMessage());
+                        }
+                    }
+                }
+            });
+        } catch (IOException e) {
+            log("Failed to start server: " + e.getMessage());
+        }
+    }
+
+    public static synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        broadcast("[Server]: Server is shutting down...", null);
+        if (cluster != null) {
+            // Other nodes drop this node's users and rooms when the links close
+            cluster.stop();
+            cluster = null;
+        }
+        
+        // Close all client connections
+        for (ChatSession client : clients) {
+            try {
+                client.sendMessage("[Server]: Server is shutting down");
+                client.closeConnection();
+            } catch (IOException e) {
+                log("Error closing client connection: " + e.getMessage());
+            }
+        }
+        clients.clear();
+        rooms.clear();
+        sessionsByName.clear();
+        if (presenceScheduler != null) {
+            presenceScheduler.shutdownNow();
+            presenceScheduler = null;
+        }
+        presence.clear();
+        if (heartbeatWheel != null) {
+            heartbeatWheel.stop();
+            heartbeatWheel = null;
+        }
+        departures.clear();
+        if (statsScheduler != null) {
+            statsScheduler.shutdownNow();
+            statsScheduler = null;
+        }
+        Metrics.unregister();
+        floodControl = null;
+        if (authenticator != null) {
+            log("Logins: " + authenticator.getStats());
+            authenticator.shutdown();
+            authenticator = null;
+        }
+        
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            log("Error closing server socket: " + e.getMessage());
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        }
+        if (clientExecutor != null) {
+            // Closed sockets unblock every handler; wait for them to finish
+            clientExecutor.shutdown();
+            try {
+                if (!clientExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    log("Client threads did not stop in time, interrupting");
+                    clientExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                clientExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            clientExecutor = null;
+        }
+        log("History cache: " + historyCache.getStats());
+        historyCache.close();
+        if (persister != null) {
+            // Everything said before the shutdown still reaches the database
+            persister.close(SHUTDOWN_TIMEOUT_SECONDS * 1000);
+            log("Persisted " + persister.getPersistedCount() + " messages ("
+                + persister.getRejectedCount() + " rejected, "
+                + persister.getFailedBatchCount() + " failed batches, "
+                + persister.getDroppedCount() + " dropped)");
+            persister = null;
+        }
+        if (searchIndex != null) {
+            // Writes out whatever is still buffered as a last segment
+            searchIndex.close(SHUTDOWN_TIMEOUT_SECONDS * 1000);
+            log("Search index: " + searchIndex.getStats());
+            searchIndex = null;
+        }
+        if (statusPersister != null) {
+            statusPersister.close();
+            log("Wrote " + statusPersister.getWrittenCount() + " user status updates");
+            statusPersister = null;
+        }
+        // --auth, --persist and the history fallback can each have opened the pool
+        JdbcConnectivity.shutdown();
+        
+        log("Server stopped");
+    }
+
+    public static void broadcastServerMessage(String message) {
+        broadcast("[Server]: " + message, null);
+        log("[Server]: " + message);
+    }
+
+    public static void broadcast(String message, ChatSession sender) {
+        // Encode once; every recipient queues a reference to the same bytes
+        long start = System.nanoTime();
+        SharedFrame frame = SharedFrame.encode(message);
+        int recipients = 0;
+        try {
+            for (ChatSession client : clients) {
+                if (client != sender) {
+                    client.sendFrame(frame.retain());
+                    recipients++;
+                }
+            }
+        } finally {
+            frame.release();
+            recordFanout(start, recipients);
+        }
+    }
+
+    // Sends message to every member of room except sender
+    public static void broadcastToRoom(String room, String message, ChatSession sender) {
+        broadcastToRoom(room, message, sender, System.currentTimeMillis(), 0);
+    }
+
+    // Same, stamped with the time the message was sent. receivedNanos is when
+    // the message was read from its sender, for the delivery latency; 0 if
+    // the message did not come from a client. Other nodes with members in
+    // the room get the line too.
+    public static void broadcastToRoom(String room, String message, ChatSession sender, long stamp,
+                                       long receivedNanos) {
+        deliverToRoom(room, message, sender, stamp, receivedNanos);
+        Cluster current = cluster;
+        if (current != null) {
+            current.relayLine(room, message, stamp);
+        }
+    }
+
+    // Sends message to the room's members on this node only
+    static void deliverToRoom(String room, String message, ChatSession sender, long stamp, long receivedNanos) {
+        deliverToRoom(room, SharedFrame.encode(message, stamp).measureDeliveryFrom(receivedNanos), sender);
+    }
+
+    // Numbers a chat message with the room's next sequence number, which is
+    // also its time, delivers line to the room's members on this node and
+    // keeps the message for replay, all under the room's clock: members get
+    // a room's lines in sequence order, and whoever joins under the clock
+    // finds everything numbered before in the history cache.
+    static ChatMessage postChat(String room, String sender, String text, String line, ChatSession from,
+                                long receivedNanos) {
+        RoomSequences.Clock clock = sequences.clock(room);
+        synchronized (clock) {
+            long sequence = clock.next();
+            deliverToRoom(room, SharedFrame.encode(line, sequence, room).measureDeliveryFrom(receivedNanos), from);
+            ChatMessage message = new ChatMessage(0, sender, null, room, text, ChatMessage.PUBLIC, sequence, true);
+            remember(HistoryCache.roomKey(room), message);
+            return message;
+        }
+    }
+
+    // Same for a chat message numbered on another node
+    static void deliverRelayedChat(ChatMessage message, String line) {
+        String room = message.getRoom();
+        RoomSequences.Clock clock = sequences.clock(room);
+        synchronized (clock) {
+            clock.observe(message.getSentAt());
+            deliverToRoom(room, SharedFrame.encode(line, message.getSentAt(), room), null);
+            remember(HistoryCache.roomKey(room), message);
+        }
+    }
+
+    // Takes over the reference to frame
+    private static void deliverToRoom(String room, SharedFrame frame, ChatSession sender) {
+        long start = System.nanoTime();
+        int recipients = 0;
+        try {
+            for (ChatSession client : rooms.members(room)) {
+                if (client != sender) {
+                    client.sendFrame(frame.retain());
+                    recipients++;
+                }
+            }
+        } finally {
+            frame.release();
+            recordFanout(start, recipients);
+        }
+    }
+
+    private static void recordFanout(long startNanos, int recipients) {
+        Metrics.fanout.recordSince(startNanos);
+        Metrics.broadcasts.increment();
+        Metrics.broadcastRecipients.add(recipients);
+    }
+
+    // Remembers a sent message for replay and queues it for the database
+    public static void record(String historyKey, ChatMessage message) {
+        remember(historyKey, message);
+        persist(message);
+    }
+
+    // Keeps a message for replay and, if enabled, search
+    static void remember(String historyKey, ChatMessage message) {
+        historyCache.add(historyKey, message);
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            index.submit(historyKey, message);
+        }
+    }
+
+    // Queues message for the database if persistence is enabled
+    public static void persist(ChatMessage message) {
+        MessagePersister current = persister;
+        if (current != null && !current.submit(message)) {
+            log("Persistence backlog full, message from " + message.getSender() + " not saved");
+        }
+    }
+
+    // How long a sender should wait before its next message is handled: the
+    // persister's backpressure while it is backed up, otherwise 0
+    static long persistBackpressureNanos() {
+        MessagePersister current = persister;
+        return current != null && current.isBackedUp()
+            ? TimeUnit.MILLISECONDS.toNanos(PERSIST_BACKPRESSURE_MS) : 0;
+    }
+
+    // Sends a private message to a user on this node; returns false if the
+    // recipient is not online here
+    public static boolean sendPrivate(String recipient, String message) {
+        ChatSession client = sessionsByName.get(recipient);
+        if (client == null) {
+            return false;
+        }
+        client.sendMessage(message);
+        return true;
+    }
+
+    static void registerClient(ChatSession client) {
+        clients.add(client);
+    }
+
+    static void unregisterClient(ChatSession client) {
+        clients.remove(client);
+    }
+
+    public static void log(String message) {
+        logBuffer.append(message);
+        if (logToConsole) {
+            System.out.println(message);
+        }
+    }
+
+    // Marks a user online or offline for the roster and the users table
+    static void setOnline(String username, boolean online) {
+        if (online) {
+            presence.online(username);
+        } else {
+            presence.offline(username);
+        }
+        StatusPersister status = statusPersister;
+        if (status != null) {
+            status.record(username, online);
+        }
+        Cluster current = cluster;
+        if (current != null) {
+            current.userChanged(username, online);
+        }
+    }
+
+    // A room got its first member on this node or lost its last one
+    private static void roomChanged(String room, boolean occupied) {
+        if (!occupied) {
+            sequences.retire(room);
+        }
+        Cluster current = cluster;
+        if (current != null) {
+            current.roomChanged(room, occupied);
+        }
+    }
+
+    // The rooms a user was in when their connection dropped without /quit;
+    // they are only told the user left once the grace period is over
+    private static final class Departure {
+        final Set<String> rooms;
+        volatile TimerWheel.Timeout timeout;
+
+        Departure(Set<String> rooms) {
+            this.rooms = rooms;
+        }
+    }
+
+    // Holds back the "has left" lines of a user whose connection dropped, in
+    // case they resume within the grace period
+    static void departed(String username, Set<String> rooms) {
+        TimerWheel wheel = heartbeatWheel;
+        if (resumeGraceMillis <= 0 || wheel == null || rooms.isEmpty()) {
+            announceDeparture(username, rooms);
+            return;
+        }
+        Departure departure = new Departure(rooms);
+        Departure previous = departures.put(username, departure);
+        if (previous != null) {
+            cancel(previous);
+            announceDeparture(username, previous.rooms);
+        }
+        departure.timeout = wheel.schedule(() -> {
+            if (departures.remove(username, departure)) {
+                announceDeparture(username, departure.rooms);
+            }
+        }, resumeGraceMillis);
+    }
+
+    // Called when username logs in again; returns the rooms whose "has left"
+    // line was still held back, which is now never sent, or an empty set
+    static Set<String> returned(String username) {
+        Departure departure = departures.remove(username);
+        if (departure == null) {
+            return Set.of();
+        }
+        cancel(departure);
+        return departure.rooms;
+    }
+
+    private static void cancel(Departure departure) {
+        TimerWheel.Timeout timeout = departure.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    static void announceDeparture(String username, Set<String> rooms) {
+        for (String room : rooms) {
+            broadcastToRoom(room, ChatSession.roomLabel(room) + username + " has left the chat", null);
+        }
+    }
+
+    // True while clients are still reconnecting after a restart; nobody was
+    // told they left, so nobody needs telling they are back
+    static boolean justStarted() {
+        return System.currentTimeMillis() - startedMillis < resumeGraceMillis;
+    }
+
+    // Sends everything that changed since the last run to clients that asked
+    // for presence, as one frame encoded once; runs on the presence thread
+    private static void publishPresence() {
+        try {
+            Set<String> changed = new LinkedHashSet<>();
+            long next = presence.changesSince(presenceSequence, changed);
+            String target = "";
+            StringBuilder sb = new StringBuilder();
+            if (next < 0) {
+                // Too much churn to list; send the whole roster instead
+                next = presence.getSequence();
+                target = "snapshot";
+                for (Map.Entry<String, PresenceService.Status> entry : presence.snapshot().entrySet()) {
+                    appendLine(sb, PresenceService.describe(entry.getKey(), entry.getValue()));
+                }
+            } else if (changed.isEmpty()) {
+                return;
+            } else {
+                for (String name : changed) {
+                    appendLine(sb, PresenceService.describe(name, presence.statusOf(name)));
+                }
+            }
+            presenceSequence = next;
+
+            SharedFrame frame = SharedFrame.raw(FrameCodec.encode(FrameCodec.PRESENCE, next, target,
+                sb.toString(), false));
+            try {
+                for (ChatSession client : clients) {
+                    if (client.wantsPresence()) {
+                        client.sendFrame(frame.retain());
+                    }
+                }
+            } finally {
+                frame.release();
+            }
+        } catch (RuntimeException e) {
+            log("Presence update failed: " + e.getMessage());
+        }
+    }
+
+    static void appendLine(StringBuilder sb, String line) {
+        if (sb.length() > 0) {
+            sb.append('\n');
+        }
+        sb.append(line);
+    }
+
+    private static class ClientHandler extends ChatSession implements Runnable {
+        private Socket clientSocket;
+        private OutputStream out;
+        private BufferedInputStream in;
+
+        public ClientHandler(Socket socket) {
+            this.clientSocket = socket;
+            this.remoteAddress = socket.getInetAddress().getHostAddress();
+            try {
+                // Lets the OS notice peers that vanished without a FIN as well
+                clientSocket.setKeepAlive(true);
+                out = new BufferedOutputStream(clientSocket.getOutputStream());
+                in = new BufferedInputStream(new CountingInputStream(clientSocket.getInputStream()));
+            } catch (IOException e) {
+                log("Error creating client handler: " + e.getMessage());
+            }
+        }
+
+        @Override
+        protected void onOutboundReady() {
+            // writeLoop() is already waiting on the queue
+        }
+
+        @Override
+        public void closeConnection() {
+            // writeLoop() flushes what is left and closes the socket
+            outbound.close();
+        }
+
+        @Override
+        protected void abortConnection() {
+            outbound.close();
+            outbound.clear();
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                log("Error closing connection: " + e.getMessage());
+            }
+        }
+
+        // Drains the outbound queue; runs as its own task next to run()
+        void writeLoop() {
+            try {
+                SharedFrame frame;
+                while ((frame = outbound.take()) != null) {
+                    write(frame);
+                    while ((frame = outbound.poll()) != null) {
+                        write(frame);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                if (!clientSocket.isClosed()) {
+                    log("Write error with " + username + ": " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    log("Error closing connection: " + e.getMessage());
+                }
+            }
+        }
+
+        private void write(SharedFrame frame) throws IOException {
+            try {
+                int headerLength = wireHeader(frame);
+                int bodyLength = wireBodyLength(frame);
+                out.write(wireHeaderBytes(), 0, headerLength);
+                out.write(wireBody(frame), 0, bodyLength);
+                Metrics.messagesOut.increment();
+                Metrics.bytesOut.add(headerLength + bodyLength);
+            } finally {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                onConnect();
+                // A leading zero byte means a binary client, anything else a text one
+                in.mark(FrameCodec.MAGIC.length);
+                int first = in.read();
+                if (first < 0) {
+                    return;
+                }
+                if (first == FrameCodec.MAGIC[0]) {
+                    readFrames();
+                } else {
+                    in.reset();
+                    readLines();
+                }
+            } catch (IOException e) {
+                if (!clientSocket.isClosed()) {
+                    log("Connection error with " + username + ": " + e.getMessage());
+                }
+            } finally {
+                onDisconnect();
+                closeConnection();
+            }
+        }
+
+        private void readLines() throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                touch();
+                Metrics.messagesIn.increment();
+                long admitted = admit(line.length());
+                if (admitted == FloodControl.CLOSE) {
+                    break;
+                }
+                if (admitted == FloodControl.DROP) {
+                    continue;
+                }
+                if (admitted > 0) {
+                    // Not reading meanwhile lets TCP slow the client down
+                    LockSupport.parkNanos(admitted);
+                }
+                if (!handleLine(line)) {
+                    break;
+                }
+            }
+        }
+
+        private void readFrames() throws IOException {
+            DataInputStream data = new DataInputStream(in);
+            for (int i = 1; i < FrameCodec.MAGIC.length; i++) {
+                if (data.readUnsignedByte() != FrameCodec.MAGIC[i]) {
+                    throw new IOException("Bad protocol preamble");
+                }
+            }
+            binary = true;
+            FrameCodec.Frame frame;
+            while ((frame = FrameCodec.read(data)) != null) {
+                touch();
+                Metrics.messagesIn.increment();
+                long admitted = admit(frame.target.length() + frame.text.length());
+                if (admitted == FloodControl.CLOSE) {
+                    break;
+                }
+                if (admitted == FloodControl.DROP) {
+                    continue;
+                }
+                if (admitted > 0) {
+                    LockSupport.parkNanos(admitted);
+                }
+                if (!handleFrame(frame)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Counts bytes read from a client socket into Metrics.bytesIn
+    private static class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                Metrics.bytesIn.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                Metrics.bytesIn.add(count);
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,895 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Transport-independent part of a client connection. Both the blocking
+ * ClientHandler and the NIO engine feed decoded lines into handleLine(),
+ * or decoded FrameCodec frames into handleFrame() for binary clients, so
+ * both protocols are implemented in exactly one place.
+ *
+ * Outgoing messages never touch the socket on the caller's thread: they go
+ * into a bounded per-client OutboundQueue that the transport drains.
+ */
+public abstract class ChatSession {
+    static final Pattern ROOM_PATTERN = Pattern.compile("^[a-zA-Z0-9_-]{1,32}$");
+    // More "resume" lines than this in a HELLO are ignored
+    private static final int MAX_RESUME_ROOMS = 64;
+    private static final int SEARCH_RESULTS = 20;
+    private static final byte[] GREETING = "Enter your username:\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NO_TARGET = new byte[0];
+
+    protected volatile String username;
+    protected boolean authenticated = false;
+    // Peer IP, set by the transport; login attempts are limited per address
+    protected String remoteAddress = "unknown";
+    // Text clients with --auth: name given, password still to come
+    private String pendingName;
+    // A password check is running on the Authenticator's pool
+    private volatile boolean authPending = false;
+    // Keeps a login finishing on the auth pool, or a resumed room joined
+    // from a history database thread, from racing onDisconnect(). Taken
+    // before a room clock, never while holding one: sendFrame() must not
+    // end a session on the caller's thread.
+    private final Object loginLock = new Object();
+    // Room that plain chat lines are sent to
+    protected volatile String currentRoom = ChatServer.DEFAULT_ROOM;
+    protected final OutboundQueue outbound =
+        new OutboundQueue(ChatServer.outboundCapacity, ChatServer.overflowPolicy);
+    // Set by the transport when the client opened with FrameCodec.MAGIC
+    protected volatile boolean binary = false;
+    // Negotiated in the HELLO handshake
+    protected volatile boolean compress = false;
+    protected volatile boolean presenceUpdates = false;
+    // The client reconnects on its own when the connection drops
+    protected volatile boolean resumable = false;
+    // Rooms and the last sequence number seen in each, from a resuming
+    // client's HELLO; null for a fresh login
+    private Map<String, Long> resumeFrom;
+    // The client said /quit rather than losing the connection
+    private volatile boolean quitting = false;
+    // Last time anything arrived from the client, epoch millis
+    private volatile long lastInbound = System.currentTimeMillis();
+    // System.nanoTime() of the same, for latency metrics; reader thread only
+    private long receivedNanos;
+    // Round trip of the latest answered PING, -1 until there is one
+    private volatile long pingRttMillis = -1;
+    private volatile boolean ended = false;
+    private volatile TimerWheel.Timeout heartbeat;
+    // Flood control allowances; null when there are no limits or, for the
+    // user's, before login
+    private final FloodControl.Buckets connectionLimits = newConnectionLimits();
+    private volatile FloodControl.Buckets userLimits;
+    // The client has been told its messages are being dropped; reader thread only
+    private boolean floodWarned = false;
+    // Scratch space for TEXT frame headers, only touched by the writing thread
+    private final byte[] headerScratch = new byte[FrameCodec.MAX_TEXT_HEADER_SIZE];
+
+    public String getUsername() {
+        return username;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    // True for binary clients that asked for PRESENCE frames
+    public boolean wantsPresence() {
+        return presenceUpdates && username != null;
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    public void sendMessage(String message) {
+        sendFrame(SharedFrame.encode(message));
+    }
+
+    // Takes over one reference to frame
+    public void sendFrame(SharedFrame frame) {
+        if (!outbound.offer(frame)) {
+            ChatServer.log(username + " is not keeping up, disconnecting slow consumer");
+            abortConnection();
+            return;
+        }
+        onOutboundReady();
+    }
+
+    // Queues a protocol frame for a binary client
+    protected void sendControl(byte type, long messageId, String text) {
+        sendControl(type, messageId, "", text);
+    }
+
+    protected void sendControl(byte type, long messageId, String target, String text) {
+        sendFrame(SharedFrame.raw(FrameCodec.encode(type, messageId, target, text, compress)));
+    }
+
+    // A frame goes on the wire as wireHeader() bytes of headerScratch followed
+    // by wireBodyLength() bytes of wireBody(). Text clients get the line as is.
+    protected int wireHeader(SharedFrame frame) {
+        if (!binary || frame.isRaw()) {
+            return 0;
+        }
+        byte[] target = frame.target();
+        if (target.length > headerScratch.length - FrameCodec.TEXT_HEADER_SIZE) {
+            target = NO_TARGET;
+        }
+        if (useDeflate(frame)) {
+            return FrameCodec.writeTextHeader(headerScratch, frame.deflated().length, FrameCodec.FLAG_DEFLATE,
+                frame.getStamp(), target);
+        }
+        return FrameCodec.writeTextHeader(headerScratch, frame.length() - 1, (byte) 0, frame.getStamp(), target);
+    }
+
+    protected byte[] wireHeaderBytes() {
+        return headerScratch;
+    }
+
+    protected byte[] wireBody(SharedFrame frame) {
+        return binary && !frame.isRaw() && useDeflate(frame) ? frame.deflated() : frame.array();
+    }
+
+    protected int wireBodyLength(SharedFrame frame) {
+        if (!binary || frame.isRaw()) {
+            return frame.length();
+        }
+        return useDeflate(frame) ? frame.deflated().length : frame.length() - 1;
+    }
+
+    private boolean useDeflate(SharedFrame frame) {
+        return compress && frame.length() - 1 >= FrameCodec.COMPRESS_THRESHOLD;
+    }
+
+    // Tells the transport that the outbound queue has something to write
+    protected abstract void onOutboundReady();
+
+    // Writes whatever is still queued, then closes the connection
+    public abstract void closeConnection() throws IOException;
+
+    // Discards queued output and closes the connection immediately
+    protected abstract void abortConnection();
+
+    private static FloodControl.Buckets newConnectionLimits() {
+        FloodControl flood = ChatServer.floodControl;
+        return flood == null ? null : flood.newConnection();
+    }
+
+    // Called by the transport for every line or frame before handing it to
+    // handleLine()/handleFrame(). Returns FloodControl.ADMIT to handle it
+    // now, a wait in nanoseconds before handling it, during which the
+    // transport should not read, FloodControl.DROP to skip it, or
+    // FloodControl.CLOSE to end the session. Logged-in senders also wait
+    // while the message persister is backed up.
+    protected long admit(int size) {
+        long result = admitFlood(size);
+        if (result >= 0 && username != null) {
+            result = Math.max(result, ChatServer.persistBackpressureNanos());
+        }
+        return result;
+    }
+
+    private long admitFlood(int size) {
+        FloodControl flood = ChatServer.floodControl;
+        if (flood == null || connectionLimits == null) {
+            return FloodControl.ADMIT;
+        }
+        long result = flood.admit(connectionLimits, userLimits, size);
+        if (result == FloodControl.DROP) {
+            if (!floodWarned) {
+                floodWarned = true;
+                sendMessage("You are sending too fast; messages are being dropped");
+            }
+        } else if (result == FloodControl.CLOSE) {
+            ChatServer.log((username != null ? username : remoteAddress) + " is flooding, disconnecting");
+            sendMessage("Disconnected for sending too fast");
+        } else {
+            floodWarned = false;
+        }
+        return result;
+    }
+
+    // Called once the transport is ready to exchange lines. The prompt goes
+    // out before the client's protocol is known, so it is always a plain
+    // line; binary clients read and discard it before sending MAGIC.
+    public void onConnect() {
+        sendFrame(SharedFrame.raw(GREETING));
+        scheduleHeartbeat(Math.min(ChatServer.LOGIN_TIMEOUT_MS, ChatServer.pingIntervalMillis));
+    }
+
+    // Called by the transport whenever bytes arrive
+    protected void touch() {
+        lastInbound = System.currentTimeMillis();
+        receivedNanos = System.nanoTime();
+    }
+
+    public long getPingRttMillis() {
+        return pingRttMillis;
+    }
+
+    private void scheduleHeartbeat(long delayMillis) {
+        TimerWheel wheel = ChatServer.heartbeatWheel;
+        if (wheel != null && !ended) {
+            heartbeat = wheel.schedule(this::checkHeartbeat, delayMillis);
+        }
+    }
+
+    // Runs on the heartbeat wheel thread. Each session has exactly one check
+    // pending; inbound traffic only updates lastInbound, and the check
+    // re-arms itself for whatever time is left.
+    private void checkHeartbeat() {
+        if (ended) return;
+        long now = System.currentTimeMillis();
+        long idle = now - lastInbound;
+        if (username == null && idle >= ChatServer.LOGIN_TIMEOUT_MS) {
+            ChatServer.log("Closing connection that did not log in");
+            abortConnection();
+        } else if (binary && idle >= ChatServer.pingTimeoutMillis) {
+            ChatServer.log(username + " stopped answering pings, disconnecting");
+            abortConnection();
+        } else if (binary && idle >= ChatServer.pingIntervalMillis) {
+            sendControl(FrameCodec.PING, now, "");
+            scheduleHeartbeat(Math.min(ChatServer.pingIntervalMillis, ChatServer.pingTimeoutMillis - idle));
+        } else if (binary) {
+            scheduleHeartbeat(ChatServer.pingIntervalMillis - idle);
+        } else if (username == null) {
+            scheduleHeartbeat(ChatServer.LOGIN_TIMEOUT_MS - idle);
+        } else if (ChatServer.idleTimeoutMillis > 0) {
+            if (idle >= ChatServer.idleTimeoutMillis) {
+                sendMessage("Disconnected after " + ChatServer.idleTimeoutMillis / 1000 + " seconds without activity");
+                ChatServer.log(username + " idle, disconnecting");
+                closeGracefully();
+            } else {
+                scheduleHeartbeat(ChatServer.idleTimeoutMillis - idle);
+            }
+        }
+    }
+
+    private void closeGracefully() {
+        try {
+            closeConnection();
+        } catch (IOException e) {
+            abortConnection();
+        }
+    }
+
+    // Processes one inbound line; returns false when the session should end
+    public boolean handleLine(String input) {
+        if (username == null) {
+            Authenticator authenticator = ChatServer.authenticator;
+            if (authPending) {
+                sendMessage("Checking your password, please wait...");
+            } else if (authenticator == null) {
+                login(input);
+            } else if (pendingName == null) {
+                if (checkName(input)) {
+                    pendingName = input;
+                    sendMessage("Enter your password:");
+                }
+            } else {
+                String name = pendingName;
+                pendingName = null;
+                authPending = true;
+                authenticator.checkPassword(name, input, remoteAddress, false, (result, token) -> {
+                    try {
+                        if (result == Authenticator.Result.ACCEPTED) {
+                            // A rejected name has already asked for another one
+                            login(name);
+                        } else {
+                            loginFailed(name, result);
+                            if (result == Authenticator.Result.LOCKED_OUT) {
+                                closeGracefully();
+                            } else {
+                                sendMessage("Enter your username:");
+                            }
+                        }
+                    } finally {
+                        authPending = false;
+                    }
+                });
+            }
+            return true;
+        }
+
+        if (input.startsWith("/quit")) {
+            quitting = true;
+            return false;
+        }
+        if (input.startsWith("/") && handleCommand(input)) {
+            return true;
+        }
+        if (input.startsWith("MSG\t")) {
+            // Structured private message: MSG<TAB>id<TAB>recipient<TAB>text
+            String[] fields = input.split("\t", 4);
+            if (fields.length == 4) {
+                boolean delivered = sendPrivate(fields[2], fields[3]);
+                sendMessage("ACK\t" + fields[1] + "\t" + (delivered ? "DELIVERED" : "OFFLINE"));
+            } else {
+                sendMessage("ERR\tmalformed MSG, expected MSG<TAB>id<TAB>user<TAB>text");
+            }
+            return true;
+        }
+        postToRoom(currentRoom, input);
+        return true;
+    }
+
+    // Processes one inbound binary frame; returns false when the session should end
+    public boolean handleFrame(FrameCodec.Frame frame) {
+        if (username == null) {
+            if (authPending) {
+                sendControl(FrameCodec.ERROR, frame.messageId, "Still logging in");
+                return true;
+            }
+            if (frame.type != FrameCodec.HELLO) {
+                sendControl(FrameCodec.ERROR, frame.messageId, "Expected HELLO");
+                return false;
+            }
+            return hello(frame);
+        }
+
+        switch (frame.type) {
+            case FrameCodec.CHAT:
+                String room = frame.target.isEmpty() ? currentRoom : frame.target;
+                if (!ChatServer.rooms.isMember(room, this)) {
+                    sendControl(FrameCodec.ERROR, frame.messageId, "You are not in #" + room);
+                } else {
+                    postToRoom(room, frame.text);
+                }
+                return true;
+            case FrameCodec.PRIVATE:
+                boolean delivered = sendPrivate(frame.target, frame.text);
+                sendControl(FrameCodec.ACK, frame.messageId, delivered ? "DELIVERED" : "OFFLINE");
+                return true;
+            case FrameCodec.COMMAND:
+                return handleLine(frame.text);
+            case FrameCodec.HISTORY:
+                sendOlderHistory(frame.messageId);
+                return true;
+            case FrameCodec.PING:
+                sendControl(FrameCodec.PONG, frame.messageId, "");
+                return true;
+            case FrameCodec.PONG:
+                pingRttMillis = System.currentTimeMillis() - frame.messageId;
+                return true;
+            case FrameCodec.QUIT:
+                quitting = true;
+                return false;
+            default:
+                sendControl(FrameCodec.ERROR, frame.messageId, "Unsupported frame type " + frame.type);
+                return true;
+        }
+    }
+
+    // HELLO: target is the username; the payload is the offered capabilities,
+    // then with --auth a "password <secret>" or "token <token>" line, and
+    // from a reconnecting client "resume <room> <sequence>" lines
+    private boolean hello(FrameCodec.Frame frame) {
+        String[] lines = frame.text.split("\n");
+        String password = null;
+        String token = null;
+        Map<String, Long> resume = new LinkedHashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].startsWith("password ")) {
+                password = lines[i].substring(9);
+            } else if (lines[i].startsWith("token ")) {
+                token = lines[i].substring(6);
+            } else if (lines[i].startsWith("resume ") && resume.size() < MAX_RESUME_ROOMS) {
+                String[] fields = lines[i].split(" ");
+                if (fields.length == 3 && ROOM_PATTERN.matcher(fields[1]).matches()) {
+                    try {
+                        resume.putIfAbsent(fields[1], Long.parseLong(fields[2]));
+                    } catch (NumberFormatException e) {
+                        // Not worth failing the login over; the room is just not resumed
+                    }
+                }
+            }
+        }
+        // Only offer what both sides understand
+        List<String> offered = Arrays.asList(lines.length > 0 ? lines[0].split(",") : new String[0]);
+        List<String> agreed = new ArrayList<>();
+        if (offered.contains(FrameCodec.CAP_DEFLATE)) {
+            agreed.add(FrameCodec.CAP_DEFLATE);
+        }
+        if (offered.contains(FrameCodec.CAP_PRESENCE)) {
+            agreed.add(FrameCodec.CAP_PRESENCE);
+        }
+        if (offered.contains(FrameCodec.CAP_RESUME)) {
+            agreed.add(FrameCodec.CAP_RESUME);
+        }
+        compress = agreed.contains(FrameCodec.CAP_DEFLATE);
+        presenceUpdates = agreed.contains(FrameCodec.CAP_PRESENCE);
+        resumable = agreed.contains(FrameCodec.CAP_RESUME);
+        resumeFrom = resumable && !resume.isEmpty() ? resume : null;
+        String name = frame.target;
+        long id = frame.messageId;
+
+        Authenticator authenticator = ChatServer.authenticator;
+        if (authenticator == null) {
+            return finishHello(id, agreed, name, null);
+        }
+        if (!checkName(name)) {
+            sendControl(FrameCodec.ERROR, id, "Login rejected");
+            return false;
+        }
+        // A valid token skips the password hash entirely
+        String nextToken = token == null ? null : authenticator.resume(name, token);
+        if (nextToken != null) {
+            return finishHello(id, agreed, name, nextToken);
+        }
+        if (password == null) {
+            sendControl(FrameCodec.ERROR, id, token == null ? "Password required" : "Session expired");
+            return false;
+        }
+        authPending = true;
+        authenticator.checkPassword(name, password, remoteAddress, true, (result, issued) -> {
+            try {
+                if (result != Authenticator.Result.ACCEPTED) {
+                    loginFailed(name, result);
+                    sendControl(FrameCodec.ERROR, id, "Login rejected");
+                    closeGracefully();
+                } else if (!finishHello(id, agreed, name, issued)) {
+                    closeGracefully();
+                }
+            } finally {
+                authPending = false;
+            }
+        });
+        return true;
+    }
+
+    // Acknowledges HELLO, with the session token if there is one, and logs in
+    private boolean finishHello(long id, List<String> agreed, String name, String token) {
+        String caps = String.join(",", agreed);
+        sendControl(FrameCodec.HELLO_ACK, id, token == null || token.isEmpty() ? caps : caps + "\ntoken " + token);
+        if (!login(name)) {
+            // There is no prompt to retry at, so the client has to reconnect
+            sendControl(FrameCodec.ERROR, id, "Login rejected");
+            return false;
+        }
+        return true;
+    }
+
+    // Tells the client why a password check failed
+    private void loginFailed(String name, Authenticator.Result result) {
+        switch (result) {
+            case LOCKED_OUT:
+                ChatServer.log("Too many login attempts for " + name + " from " + remoteAddress);
+                sendMessage("Too many login attempts, try again later");
+                break;
+            case BUSY:
+                sendMessage("Server is busy, try again shortly");
+                break;
+            default:
+                ChatServer.log("Failed login for " + name + " from " + remoteAddress);
+                sendMessage("Wrong username or password");
+                break;
+        }
+    }
+
+    private boolean checkName(String name) {
+        if (!ChatServer.USERNAME_PATTERN.matcher(name).matches()) {
+            sendMessage("Invalid username! Must be 3-20 alphanumeric characters. Try again:");
+            return false;
+        }
+        return true;
+    }
+
+    // Claims a username and joins the lobby; false if the name was rejected
+    private boolean login(String name) {
+        if (!checkName(name)) {
+            return false;
+        }
+        synchronized (loginLock) {
+            if (ended) {
+                return false;
+            }
+            Cluster cluster = ChatServer.cluster;
+            if ((cluster != null && cluster.nodeOf(name) != null)
+                    || ChatServer.sessionsByName.putIfAbsent(name, this) != null) {
+                sendMessage("Username " + name + " is already in use! Try again:");
+                return false;
+            }
+            username = name;
+            authenticated = true;
+            FloodControl flood = ChatServer.floodControl;
+            if (flood != null) {
+                userLimits = flood.forUser(name);
+            }
+            if (resumeFrom != null) {
+                ChatServer.log(username + " reconnected");
+                sendMessage("Welcome back " + username + "!");
+            } else {
+                ChatServer.log(username + " connected");
+                sendMessage("Welcome " + username + "! Type /help for commands.");
+            }
+            ChatServer.setOnline(username, true);
+            if (presenceUpdates) {
+                sendPresenceSnapshot();
+            }
+            Set<String> unannounced = ChatServer.returned(username);
+            if (resumeFrom != null) {
+                resume(unannounced);
+                return true;
+            }
+            // Not a resume, so the user did leave those rooms after all
+            ChatServer.announceDeparture(username, unannounced);
+            ChatServer.rooms.join(ChatServer.DEFAULT_ROOM, this);
+            ChatServer.historyCache.recentInRoom(ChatServer.DEFAULT_ROOM, ChatServer.HISTORY_REPLAY, this::replay);
+            ChatServer.broadcastToRoom(ChatServer.DEFAULT_ROOM, username + " has joined the chat", this);
+            return true;
+        }
+    }
+
+    // Puts a reconnecting client back in the rooms it names and replays what
+    // was said there since the sequence number it last saw. Rooms that were
+    // never told it left, because the grace period was still running or the
+    // server has just restarted, are not told it is back either.
+    private void resume(Set<String> unannounced) {
+        boolean restarted = ChatServer.justStarted();
+        String talkingIn = null;
+        for (Map.Entry<String, Long> entry : resumeFrom.entrySet()) {
+            String room = entry.getKey();
+            if (talkingIn == null) {
+                talkingIn = room;
+            }
+            boolean announce = !restarted && !unannounced.contains(room);
+            RoomSequences.Clock clock = ChatServer.sequences.clock(room);
+            long through;
+            synchronized (clock) {
+                // A room that has been quiet since a restart has numbered
+                // nothing yet; lines numbered from here on come after now
+                clock.observe(System.currentTimeMillis());
+                through = clock.last();
+            }
+            ChatServer.historyCache.betweenInRoom(room, entry.getValue(), through, ChatServer.RESUME_REPLAY,
+                stored -> rejoin(room, clock, through, stored, announce));
+        }
+        resumeFrom = null;
+        currentRoom = talkingIn;
+        sendMessage("You are now talking in #" + currentRoom);
+    }
+
+    // Joins a resumed room and replays what was missed there. stored holds
+    // the lines up to through, which may have come from the database while
+    // more was said; those newer lines are still in the ring and are added
+    // here, under the room's clock, so every replayed line reaches the
+    // client before any line it gets live. Runs on the caller's thread when
+    // the ring answered, otherwise on a history database thread.
+    private void rejoin(String room, RoomSequences.Clock clock, long through, List<ChatMessage> stored,
+                        boolean announce) {
+        boolean joined;
+        synchronized (loginLock) {
+            // The connection may have ended while the database was answering
+            if (ended) {
+                return;
+            }
+            synchronized (clock) {
+                joined = ChatServer.rooms.join(room, this);
+                List<ChatMessage> missed = new ArrayList<>(stored);
+                missed.addAll(ChatServer.historyCache.cachedBetweenInRoom(room, through, clock.last(),
+                    ChatServer.RESUME_REPLAY));
+                if (missed.size() >= ChatServer.RESUME_REPLAY) {
+                    sendMessage(roomLabel(room)
+                        + "... more was said while you were away, /history shows older lines ...");
+                    missed = missed.subList(missed.size() - ChatServer.RESUME_REPLAY, missed.size());
+                }
+                replay(missed);
+            }
+        }
+        if (joined && announce) {
+            ChatServer.broadcastToRoom(room, roomLabel(room) + username
+                + (room.equals(ChatServer.DEFAULT_ROOM) ? " has joined the chat" : " has joined the room"), this);
+        }
+    }
+
+    private void postToRoom(String room, String text) {
+        String line = roomLabel(room) + "[" + username + "]: " + text;
+        ChatServer.log(line);
+        ChatMessage message = ChatServer.postChat(room, username, text, line, this, receivedNanos);
+        ChatServer.persist(message);
+        // Other nodes get the sender and text, not the line, so they can keep it in their history
+        Cluster cluster = ChatServer.cluster;
+        if (cluster != null) {
+            cluster.relayChat(message);
+        }
+    }
+
+    // Returns false for unknown commands so they are sent as ordinary text
+    private boolean handleCommand(String input) {
+        String[] parts = input.trim().split("\\s+", 2);
+        String arg = parts.length > 1 ? parts[1] : null;
+        switch (parts[0]) {
+            case "/help":
+                sendMessage("Commands: /msg <user> <text>, /join <room>, /leave [room], /rooms, "
+                    + "/who, /status online|away|busy, /history [@user] [count], "
+                    + "/search [#room|@user] [after:YYYY-MM-DD] [before:YYYY-MM-DD] <words>, /quit");
+                return true;
+            case "/who":
+                Map<String, PresenceService.Status> online = ChatServer.presence.snapshot();
+                StringBuilder who = new StringBuilder("Online (" + online.size() + "):");
+                for (Map.Entry<String, PresenceService.Status> entry : online.entrySet()) {
+                    who.append(' ').append(entry.getKey());
+                    if (entry.getValue() != PresenceService.Status.ONLINE) {
+                        who.append(" (").append(entry.getValue().name().toLowerCase()).append(')');
+                    }
+                }
+                sendMessage(who.toString());
+                return true;
+            case "/status":
+                try {
+                    PresenceService.Status status = PresenceService.Status.valueOf(String.valueOf(arg).toUpperCase());
+                    ChatServer.presence.setStatus(username, status);
+                    sendMessage("Your status is now " + status.name().toLowerCase());
+                } catch (IllegalArgumentException e) {
+                    sendMessage("Usage: /status online|away|busy");
+                }
+                return true;
+            case "/history":
+                showHistory(arg);
+                return true;
+            case "/search":
+                search(arg);
+                return true;
+            case "/msg":
+                String[] target = arg == null ? new String[0] : arg.split("\\s+", 2);
+                if (target.length < 2) {
+                    sendMessage("Usage: /msg <user> <text>");
+                } else if (sendPrivate(target[0], target[1])) {
+                    sendMessage("[To " + target[0] + "]: " + target[1]);
+                } else {
+                    sendMessage("User " + target[0] + " is not online");
+                }
+                return true;
+            case "/join":
+                joinRoom(arg);
+                return true;
+            case "/leave":
+                leaveRoom(arg == null ? currentRoom : arg);
+                return true;
+            case "/rooms":
+                StringBuilder sb = new StringBuilder("Rooms:");
+                for (Map.Entry<String, Integer> entry : ChatServer.rooms.roomSizes().entrySet()) {
+                    sb.append(' ').append(entry.getKey()).append(" (").append(entry.getValue()).append(')');
+                }
+                sendMessage(sb.toString());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Hands text to the recipient's outbound queue, or to the node they are
+    // logged in on; false if they are not online
+    private boolean sendPrivate(String recipient, String text) {
+        long now = System.currentTimeMillis();
+        Cluster cluster = ChatServer.cluster;
+        boolean delivered = ChatServer.sendPrivate(recipient, "[PM from " + username + "]: " + text)
+            || (cluster != null && cluster.relayPrivate(username, recipient, text, now));
+        // Undelivered messages are kept too, with is_delivered = false
+        ChatServer.record(HistoryCache.conversationKey(username, recipient), new ChatMessage(0, username,
+            recipient, null, text, ChatMessage.PRIVATE, now, delivered));
+        if (delivered) {
+            ChatServer.log("[" + username + " -> " + recipient + "]: " + text);
+        }
+        return delivered;
+    }
+
+    private void joinRoom(String room) {
+        if (room == null || !ROOM_PATTERN.matcher(room).matches()) {
+            sendMessage("Invalid room name! Use 1-32 letters, digits, '_' or '-'.");
+            return;
+        }
+        if (ChatServer.rooms.join(room, this)) {
+            ChatServer.historyCache.recentInRoom(room, ChatServer.HISTORY_REPLAY, this::replay);
+            ChatServer.broadcastToRoom(room, roomLabel(room) + username + " has joined the room", this);
+        }
+        currentRoom = room;
+        sendMessage("You are now talking in #" + room);
+    }
+
+    private void leaveRoom(String room) {
+        if (room.equals(ChatServer.DEFAULT_ROOM) && room.equals(currentRoom)) {
+            sendMessage("You are talking in #" + room + "; /join another room first");
+            return;
+        }
+        if (!ChatServer.rooms.leave(room, this)) {
+            sendMessage("You are not in #" + room);
+            return;
+        }
+        ChatServer.broadcastToRoom(room, roomLabel(room) + username + " has left the room", this);
+        sendMessage("You left #" + room);
+        if (room.equals(currentRoom)) {
+            // Fall back to the lobby so plain lines always have somewhere to go
+            ChatServer.rooms.join(ChatServer.DEFAULT_ROOM, this);
+            currentRoom = ChatServer.DEFAULT_ROOM;
+            sendMessage("You are now talking in #" + currentRoom);
+        }
+    }
+
+    // /history [@user] [count]: recent lines of the current room or a conversation
+    private void showHistory(String arg) {
+        String peer = null;
+        int count = ChatServer.HISTORY_REPLAY;
+        if (arg != null) {
+            for (String part : arg.split("\\s+")) {
+                if (part.startsWith("@")) {
+                    peer = part.substring(1);
+                } else {
+                    try {
+                        count = Math.max(1, Math.min(200, Integer.parseInt(part)));
+                    } catch (NumberFormatException e) {
+                        sendMessage("Usage: /history [@user] [count]");
+                        return;
+                    }
+                }
+            }
+        }
+        Consumer<List<ChatMessage>> show = messages -> {
+            if (messages.isEmpty()) {
+                sendMessage("No history yet");
+            }
+            replay(messages);
+        };
+        if (peer == null) {
+            ChatServer.historyCache.recentInRoom(currentRoom, count, show);
+        } else {
+            ChatServer.historyCache.recentInConversation(username, peer, count, show);
+        }
+    }
+
+    // /search [#room|@user] [after:YYYY-MM-DD] [before:YYYY-MM-DD] <words>:
+    // the latest lines of the current room, another room or a conversation
+    // that contain every word, newest first
+    private void search(String arg) {
+        SearchIndex index = ChatServer.searchIndex;
+        if (index == null) {
+            sendMessage("Search is not enabled on this server");
+            return;
+        }
+        String usage = "Usage: /search [#room|@user] [after:YYYY-MM-DD] [before:YYYY-MM-DD] <words>";
+        String scope = "#" + currentRoom;
+        String key = HistoryCache.roomKey(currentRoom);
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        StringBuilder words = new StringBuilder();
+        for (String part : arg == null ? new String[0] : arg.split("\\s+")) {
+            try {
+                if (part.startsWith("#") && ROOM_PATTERN.matcher(part.substring(1)).matches()) {
+                    scope = part;
+                    key = HistoryCache.roomKey(part.substring(1));
+                } else if (part.startsWith("@") && ChatServer.USERNAME_PATTERN.matcher(part.substring(1)).matches()) {
+                    scope = part;
+                    key = HistoryCache.conversationKey(username, part.substring(1));
+                } else if (part.startsWith("after:")) {
+                    from = startOfDay(part.substring(6));
+                } else if (part.startsWith("before:")) {
+                    to = startOfDay(part.substring(7)) - 1;
+                } else {
+                    words.append(part).append(' ');
+                }
+            } catch (DateTimeParseException e) {
+                sendMessage(usage);
+                return;
+            }
+        }
+        List<String> terms = SearchIndex.terms(words.toString());
+        if (terms.isEmpty()) {
+            sendMessage(usage);
+            return;
+        }
+        String query = String.join(" ", terms);
+        String where = scope;
+        ChatServer.historyCache.at(key, index.search(key, terms, from, to, SEARCH_RESULTS), resolved -> {
+            List<ChatMessage> found = new ArrayList<>();
+            for (ChatMessage message : resolved) {
+                if (SearchIndex.matches(message.getText(), terms)) {
+                    found.add(message);
+                }
+            }
+            if (found.isEmpty()) {
+                sendMessage("No messages in " + where + " match \"" + query + "\"");
+                return;
+            }
+            sendMessage("Messages in " + where + " matching \"" + query + "\", newest first:");
+            for (ChatMessage message : found) {
+                sendMessage(String.format("[%tF %<tR] ", message.getSentAt()) + format(message));
+            }
+        });
+    }
+
+    private static long startOfDay(String date) {
+        return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private void sendPresenceSnapshot() {
+        StringBuilder sb = new StringBuilder();
+        long sequence = ChatServer.presence.getSequence();
+        for (Map.Entry<String, PresenceService.Status> entry : ChatServer.presence.snapshot().entrySet()) {
+            ChatServer.appendLine(sb, PresenceService.describe(entry.getKey(), entry.getValue()));
+        }
+        sendControl(FrameCodec.PRESENCE, sequence, "snapshot", sb.toString());
+    }
+
+    // Replayed lines keep their original time so clients can page back from
+    // them, and room lines their room so clients can resume after them
+    private void replay(List<ChatMessage> messages) {
+        for (ChatMessage message : messages) {
+            sendFrame(SharedFrame.encode(format(message), message.getSentAt(), message.getRoom()));
+        }
+    }
+
+    // One HISTORY frame with the page of the current room before beforeMillis
+    private void sendOlderHistory(long beforeMillis) {
+        String room = currentRoom;
+        ChatServer.historyCache.olderInRoom(room, beforeMillis > 0 ? beforeMillis : System.currentTimeMillis(),
+            ChatServer.HISTORY_REPLAY, page -> {
+                StringBuilder sb = new StringBuilder();
+                for (ChatMessage message : page) {
+                    if (sb.length() > 0) {
+                        sb.append('\n');
+                    }
+                    sb.append(format(message));
+                }
+                sendControl(FrameCodec.HISTORY, page.isEmpty() ? 0 : page.get(0).getSentAt(), room, sb.toString());
+            });
+    }
+
+    private String format(ChatMessage message) {
+        if (ChatMessage.PRIVATE.equals(message.getType())) {
+            return message.getSender().equals(username)
+                ? "[To " + message.getRecipient() + "]: " + message.getText()
+                : "[PM from " + message.getSender() + "]: " + message.getText();
+        }
+        return roomLabel(message.getRoom()) + "[" + message.getSender() + "]: " + message.getText();
+    }
+
+    // Lobby lines keep the original unprefixed format
+    static String roomLabel(String room) {
+        return ChatServer.DEFAULT_ROOM.equals(room) ? "" : "[#" + room + "] ";
+    }
+
+    // Called exactly once when the connection ends, before the socket is closed
+    public void onDisconnect() {
+        // Waits for a login that is halfway through, so it is undone below
+        synchronized (loginLock) {
+            ended = true;
+        }
+        TimerWheel.Timeout pending = heartbeat;
+        if (pending != null) {
+            pending.cancel();
+        }
+        if (username != null) {
+            // Before the name is released below, so a resuming login finds it
+            Set<String> left = ChatServer.rooms.leaveAll(this);
+            if (resumable && !quitting) {
+                ChatServer.departed(username, left);
+            } else {
+                ChatServer.announceDeparture(username, left);
+            }
+            if (outbound.getDroppedMessages() > 0) {
+                ChatServer.log(username + " disconnected (" + outbound.getDroppedMessages() + " messages / "
+                    + outbound.getDroppedBytes() + " bytes dropped)");
+            } else {
+                ChatServer.log(username + " disconnected");
+            }
+        }
+        if (username != null && ChatServer.sessionsByName.remove(username, this)) {
+            ChatServer.setOnline(username, false);
+            FloodControl flood = ChatServer.floodControl;
+            if (flood != null) {
+                flood.release(username);
+            }
+        }
+        ChatServer.unregisterClient(this);
+    }
+}
@@ -1,26 +1,94 @@
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultCaret;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.*;
 
 public class ClientGUI {
-    private static final String SERVER_ADDRESS = "localhost";
-    private static final int SERVER_PORT = 12346;
-    private static PrintWriter out;
+    // java ClientGUI [host] [port], e.g. to pick one node of a cluster
+    private static String serverAddress = "localhost";
+    private static int serverPort = 12346;
+    private static DataOutputStream out;
+    // Set when the server agreed to compress large payloads
+    private static volatile boolean compress = false;
+    private static final AtomicLong nextMessageId = new AtomicLong(1);
+    // Private messages waiting for their ACK, by message id
+    private static final Map<Long, String> pendingPrivate = new ConcurrentHashMap<>();
     private static JTextArea chatArea;
+    private static JScrollPane chatScrollPane;
+    // Who is online, kept up to date from PRESENCE frames
+    private static final RosterModel roster = new RosterModel();
     private static JTextField messageField;
     private static String username;
+    // Only needed by servers started with --auth; blank means none
+    private static String password = "";
+    // Handed out by the server after a login, lets the next one skip the password
+    private static volatile String sessionToken;
+    private static volatile String sessionTokenUser;
     private static JLabel statusLabel;
-    private static boolean isConnected = false;
+    private static volatile boolean isConnected = false;
+    // The user wants to be connected: set by Connect, cleared by Disconnect
+    // and /quit. A connection that drops while it is set is re-established.
+    private static volatile boolean wantConnected = false;
+    private static volatile Thread reconnector;
+    // Reconnects since the last connection that lasted
+    private static volatile int failedAttempts = 0;
+    private static volatile long connectedAt;
+    // The rooms we are in with the last sequence number seen in each, and
+    // the one we talk in; sent with HELLO to resume after a dropped connection
+    private static final Map<String, Long> lastSequence = new ConcurrentHashMap<>();
+    private static volatile String currentRoom;
     
     // Constants
     private static final String PLACEHOLDER_TEXT = "Type message here...";
     private static final Pattern USERNAME_PATTERN = Pattern.compile("^[a-zA-Z0-9_]{3,20}$");
     private static final int MAX_MESSAGE_LENGTH = 2000;
+    // Incoming lines are rendered in one batch per tick (~60 per second)
+    private static final int FRAME_INTERVAL_MS = 16;
+    // Lines kept in the chat view while following the conversation, and
+    // while scrolled up reading older lines
+    private static final int MAX_SCROLLBACK_LINES = 1000;
+    private static final int MAX_SCROLLBACK_READING = 10_000;
+    // Marks the "no older messages" line so it is not used as a history cursor
+    private static final long NO_STAMP = -1;
+    // Where the server puts everyone who logs in
+    private static final String DEFAULT_ROOM = "lobby";
+    // Retries after a dropped connection wait a random time up to
+    // RECONNECT_BASE_MS, doubling per failed attempt up to RECONNECT_MAX_MS,
+    // so clients dropped together by a restart do not all return together
+    private static final long RECONNECT_BASE_MS = 500;
+    private static final long RECONNECT_MAX_MS = 15_000;
+    // A connection that lasted this long starts the backoff over
+    private static final long STABLE_CONNECTION_MS = 10_000;
+
+    // Received but not yet rendered; filled by the listener thread
+    private static final ArrayDeque<Entry> pendingLines = new ArrayDeque<>();
+    private static long skippedLines = 0;
+    // What chatArea holds, oldest first; only touched on the EDT
+    private static final ArrayDeque<Line> shownLines = new ArrayDeque<>();
+
+    // A received line and the server time it carries (0 for local notices)
+    private record Entry(long stamp, String text) {}
+    // A line in chatArea: its stamp and length including the newline
+    private record Line(long stamp, int length) {}
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            serverAddress = args[0];
+        }
+        if (args.length > 1) {
+            serverPort = Integer.parseInt(args[1]);
+        }
         SwingUtilities.invokeLater(() -> createAndShowGUI());
     }
 
@@ -42,8 +110,20 @@ public class ClientGUI {
         // Chat area
         chatArea = new JTextArea();
         chatArea.setEditable(false);
-        JScrollPane scrollPane = new JScrollPane(chatArea);
-        frame.add(scrollPane, BorderLayout.CENTER);
+        // Scrolling is decided per batch in renderPending()
+        ((DefaultCaret) chatArea.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        chatScrollPane = new JScrollPane(chatArea);
+        frame.add(chatScrollPane, BorderLayout.CENTER);
+
+        // Online users
+        JPanel rosterPanel = new JPanel(new BorderLayout());
+        rosterPanel.setPreferredSize(new Dimension(160, 0));
+        rosterPanel.add(new JLabel("Online:"), BorderLayout.NORTH);
+        rosterPanel.add(new JScrollPane(new JList<>(roster)), BorderLayout.CENTER);
+        frame.add(rosterPanel, BorderLayout.EAST);
+        JButton olderButton = new JButton("Load older");
+        olderButton.addActionListener(e -> requestOlderHistory());
+        connectionPanel.add(olderButton);
 
         // Message panel
         JPanel messagePanel = new JPanel(new BorderLayout());
@@ -77,17 +157,17 @@ public class ClientGUI {
 
         // Connect button action
         connectButton.addActionListener(e -> {
-            if (!isConnected) {
+            if (!isConnected && !wantConnected) {
                 promptUsername(frame);
             } else {
                 disconnectFromServer();
                 connectButton.setText("Connect");
-                statusLabel.setText("Disconnected");
-                statusLabel.setForeground(Color.RED);
-                messageField.setEnabled(false);
+                showStatus("Disconnected", Color.RED, false);
             }
         });
 
+        new Timer(FRAME_INTERVAL_MS, e -> renderPending()).start();
+
         frame.setVisible(true);
     }
 
@@ -107,58 +187,355 @@ public class ClientGUI {
         } while (input == null);
         
         username = input;
+        password = "";
+        if (sessionToken == null || !username.equals(sessionTokenUser)) {
+            JPasswordField passwordField = new JPasswordField(20);
+            int choice = JOptionPane.showConfirmDialog(parent, passwordField,
+                "Password (leave blank if the server does not need one):",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+            if (choice != JOptionPane.OK_OPTION) return;
+            password = new String(passwordField.getPassword());
+        }
         connectToServer();
     }
 
+    // A fresh login, asked for by the user
     private static void connectToServer() {
+        lastSequence.clear();
+        lastSequence.put(DEFAULT_ROOM, 0L);
+        currentRoom = DEFAULT_ROOM;
+        failedAttempts = 0;
         try {
-            Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            isConnected = true;
-            
-            // Send username to server
-            out.println(username);
-            
-            // Update UI
-            statusLabel.setText("Connected as " + username);
-            statusLabel.setForeground(new Color(0, 150, 0));
-            messageField.setEnabled(true);
-            
-            // Message listener thread
-            new Thread(() -> {
-                try (BufferedReader in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream()))) {
-                    
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        final String message = line;
-                        SwingUtilities.invokeLater(() -> {
-                            chatArea.append(message + "\n");
-                            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-                        });
-                    }
-                } catch (IOException e) {
-                    SwingUtilities.invokeLater(() -> {
-                        chatArea.append("Connection lost: " + e.getMessage() + "\n");
-                        statusLabel.setText("Disconnected");
-                        statusLabel.setForeground(Color.RED);
-                        messageField.setEnabled(false);
-                    });
-                } finally {
-                    isConnected = false;
-                }
-            }).start();
-            
+            wantConnected = true;
+            openConnection(false);
         } catch (IOException e) {
+            wantConnected = false;
             JOptionPane.showMessageDialog(null, 
                 "Failed to connect to server: " + e.getMessage(), 
                 "Connection Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
+    // Connects and logs in, resuming the previous session's rooms if asked
+    private static void openConnection(boolean resume) throws IOException {
+        Socket socket = new Socket(serverAddress, serverPort);
+        InputStream rawIn = new BufferedInputStream(socket.getInputStream());
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        // The server prompts before it knows our protocol; skip that line
+        try {
+            int b;
+            while ((b = rawIn.read()) != '\n') {
+                if (b < 0) throw new EOFException("Server closed the connection");
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        // Switch to the binary protocol and log in
+        compress = false;
+        String hello = FrameCodec.CAP_DEFLATE + "," + FrameCodec.CAP_PRESENCE + "," + FrameCodec.CAP_RESUME;
+        if (resume) {
+            // The room we talk in goes first
+            String talking = currentRoom;
+            Long seen = lastSequence.get(talking);
+            if (seen != null) {
+                hello += "\nresume " + talking + " " + seen;
+            }
+            for (Map.Entry<String, Long> room : lastSequence.entrySet()) {
+                if (!room.getKey().equals(talking)) {
+                    hello += "\nresume " + room.getKey() + " " + room.getValue();
+                }
+            }
+        }
+        if (sessionToken != null && username.equals(sessionTokenUser)) {
+            hello += "\ntoken " + sessionToken;
+        }
+        if (!password.isEmpty()) {
+            hello += "\npassword " + password;
+        }
+        // A token is single use, whatever the server makes of it
+        sessionToken = null;
+        synchronized (out) {
+            out.write(FrameCodec.MAGIC);
+            out.write(FrameCodec.encode(FrameCodec.HELLO, 0, username, hello, false));
+            out.flush();
+        }
+        password = "";
+        isConnected = true;
+        connectedAt = System.currentTimeMillis();
+        
+        // Update UI
+        showStatus("Connected as " + username, new Color(0, 150, 0), true);
+        
+        // Message listener thread; once the connection is gone it is the
+        // one that reconnects
+        new Thread(() -> {
+            try (DataInputStream in = new DataInputStream(rawIn)) {
+                FrameCodec.Frame frame;
+                while ((frame = FrameCodec.read(in)) != null) {
+                    handleFrame(frame);
+                }
+                if (wantConnected) {
+                    enqueue(0, "Connection closed by the server");
+                }
+            } catch (IOException e) {
+                enqueue(0, "Connection lost: " + e.getMessage());
+            } finally {
+                isConnected = false;
+                SwingUtilities.invokeLater(roster::clear);
+                if (wantConnected) {
+                    reconnect();
+                } else {
+                    showStatus("Disconnected", Color.RED, false);
+                }
+            }
+        }).start();
+    }
+
+    // Retries with growing, randomized waits until logged in again or the
+    // user gives up; runs on the thread of the connection that dropped
+    private static void reconnect() {
+        reconnector = Thread.currentThread();
+        if (System.currentTimeMillis() - connectedAt >= STABLE_CONNECTION_MS) {
+            failedAttempts = 0;
+        }
+        try {
+            while (wantConnected) {
+                long limit = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(failedAttempts, 10));
+                long delay = ThreadLocalRandom.current().nextLong(limit + 1);
+                failedAttempts++;
+                showStatus(String.format("Reconnecting in %.1f s...", delay / 1000.0), Color.ORANGE, false);
+                Thread.sleep(delay);
+                if (!wantConnected) break;
+                try {
+                    // Resuming: only what was said in our rooms since we dropped is replayed
+                    openConnection(true);
+                    return;
+                } catch (IOException e) {
+                    // Still unreachable; wait longer next time
+                }
+            }
+        } catch (InterruptedException e) {
+            // Disconnect pressed while waiting
+        } finally {
+            reconnector = null;
+        }
+        if (!isConnected) {
+            showStatus("Disconnected", Color.RED, false);
+        }
+    }
+
+    // Safe to call from any thread
+    private static void showStatus(String text, Color color, boolean canSend) {
+        SwingUtilities.invokeLater(() -> {
+            statusLabel.setText(text);
+            statusLabel.setForeground(color);
+            messageField.setEnabled(canSend);
+        });
+    }
+
+    private static void handleFrame(FrameCodec.Frame frame) {
+        String line;
+        switch (frame.type) {
+            case FrameCodec.HELLO_ACK:
+                // Agreed capabilities, then possibly a "token <token>" line
+                String[] ack = frame.text.split("\n");
+                compress = ack[0].contains(FrameCodec.CAP_DEFLATE);
+                if (ack.length > 1 && ack[1].startsWith("token ")) {
+                    sessionToken = ack[1].substring(6);
+                    sessionTokenUser = username;
+                }
+                return;
+            case FrameCodec.TEXT:
+                line = frame.text;
+                if (!frame.target.isEmpty()) {
+                    // A room's chat line, numbered by the server
+                    lastSequence.merge(frame.target, frame.messageId, Math::max);
+                } else {
+                    trackRooms(line);
+                }
+                break;
+            case FrameCodec.ACK:
+                String pending = pendingPrivate.remove(frame.messageId);
+                if (pending == null) return;
+                String[] parts = pending.split("\t", 2);
+                line = "DELIVERED".equals(frame.text)
+                    ? "[To " + parts[0] + "]: " + parts[1]
+                    : "User " + parts[0] + " is not online";
+                break;
+            case FrameCodec.ERROR:
+                line = "Error: " + frame.text;
+                if (frame.text.equals("Password required") || frame.text.equals("Session expired")) {
+                    // Retrying without the password would only fail again
+                    wantConnected = false;
+                    line += "; press Connect to log in again";
+                }
+                break;
+            case FrameCodec.PING:
+                try {
+                    send(FrameCodec.PONG, frame.messageId, "", "");
+                } catch (IOException e) {
+                    // The listener notices the broken connection
+                }
+                return;
+            case FrameCodec.PRESENCE:
+                // Already coalesced by the server, at most a few per second
+                SwingUtilities.invokeLater(() -> applyPresence(frame.target, frame.text));
+                return;
+            case FrameCodec.HISTORY:
+                // Rare and user-initiated, so it gets its own EDT event
+                SwingUtilities.invokeLater(() -> prependHistory(frame.messageId, frame.target, frame.text));
+                return;
+            default:
+                return;
+        }
+        enqueue(frame.type == FrameCodec.TEXT ? frame.messageId : 0, line);
+    }
+
+    // Follows the server's answers to /join and /leave, so that a resume
+    // puts us back in the same rooms
+    private static void trackRooms(String line) {
+        if (line.startsWith("You are now talking in #")) {
+            currentRoom = line.substring(24);
+            lastSequence.putIfAbsent(currentRoom, 0L);
+        } else if (line.startsWith("You left #")) {
+            lastSequence.remove(line.substring(10));
+        }
+    }
+
+    private static void applyPresence(String target, String text) {
+        if (target.equals("snapshot")) {
+            roster.clear();
+        }
+        if (!text.isEmpty()) {
+            for (String line : text.split("\n")) {
+                roster.apply(line);
+            }
+        }
+    }
+
+    // Called from any thread; the line shows up on the next frame tick
+    private static void enqueue(long stamp, String text) {
+        synchronized (pendingLines) {
+            pendingLines.addLast(new Entry(stamp, text));
+            // More than a full view behind would be trimmed on arrival anyway
+            if (pendingLines.size() > MAX_SCROLLBACK_LINES) {
+                pendingLines.pollFirst();
+                skippedLines++;
+            }
+        }
+    }
+
+    // Runs on the EDT every FRAME_INTERVAL_MS: appends everything received
+    // since the last tick with a single document insert
+    private static void renderPending() {
+        List<Entry> batch;
+        long skipped;
+        synchronized (pendingLines) {
+            if (pendingLines.isEmpty()) return;
+            batch = new ArrayList<>(pendingLines);
+            pendingLines.clear();
+            skipped = skippedLines;
+            skippedLines = 0;
+        }
+        JScrollBar bar = chatScrollPane.getVerticalScrollBar();
+        boolean following = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 16;
+
+        StringBuilder sb = new StringBuilder();
+        if (skipped > 0) {
+            appendLine(sb, 0, "... " + skipped + " messages skipped, use Load older to see them ...");
+        }
+        for (Entry entry : batch) {
+            appendLine(sb, entry.stamp(), entry.text());
+        }
+        chatArea.append(sb.toString());
+        trimScrollback(following ? MAX_SCROLLBACK_LINES : MAX_SCROLLBACK_READING);
+        if (following) {
+            chatArea.setCaretPosition(chatArea.getDocument().getLength());
+        }
+    }
+
+    private static void appendLine(StringBuilder sb, long stamp, String text) {
+        sb.append(text).append('\n');
+        shownLines.addLast(new Line(stamp, text.length() + 1));
+    }
+
+    // Drops the oldest lines beyond maxLines in one document edit
+    private static void trimScrollback(int maxLines) {
+        int chars = 0;
+        while (shownLines.size() > maxLines) {
+            chars += shownLines.pollFirst().length();
+        }
+        if (chars > 0) {
+            try {
+                chatArea.getDocument().remove(0, chars);
+            } catch (BadLocationException e) {
+                chatArea.setText("");
+                shownLines.clear();
+            }
+        }
+    }
+
+    // Asks the server for the current room's messages before the oldest line shown
+    private static void requestOlderHistory() {
+        if (!isConnected) return;
+        long before = 0;
+        for (Line line : shownLines) {
+            if (line.stamp() > 0) {
+                before = line.stamp();
+                break;
+            }
+        }
+        try {
+            send(FrameCodec.HISTORY, before, "", "");
+        } catch (IOException e) {
+            enqueue(0, "Failed to load history: " + e.getMessage());
+        }
+    }
+
+    // Inserts a page of older lines at the top of the view; runs on the EDT
+    private static void prependHistory(long oldestStamp, String room, String text) {
+        String block;
+        List<Line> lines = new ArrayList<>();
+        if (text.isEmpty()) {
+            if (!shownLines.isEmpty() && shownLines.peekFirst().stamp() == NO_STAMP) return;
+            block = "--- No older messages in #" + room + " ---\n";
+            lines.add(new Line(NO_STAMP, block.length()));
+        } else {
+            block = text + "\n";
+            for (String line : text.split("\n", -1)) {
+                lines.add(new Line(oldestStamp, line.length() + 1));
+            }
+        }
+        chatArea.insert(block, 0);
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            shownLines.addFirst(lines.get(i));
+        }
+        chatArea.setCaretPosition(0);
+    }
+
+    private static void send(byte type, long messageId, String target, String text) throws IOException {
+        byte[] frame = FrameCodec.encode(type, messageId, target, text, compress);
+        synchronized (out) {
+            out.write(frame);
+            out.flush();
+        }
+    }
+
     private static void disconnectFromServer() {
-        if (out != null) {
-            out.println("/quit");
+        wantConnected = false;
+        Thread waiting = reconnector;
+        if (waiting != null) {
+            waiting.interrupt();
+        }
+        if (out != null && isConnected) {
+            try {
+                send(FrameCodec.QUIT, 0, "", "");
+            } catch (IOException e) {
+                // Already gone
+            }
             isConnected = false;
         }
     }
@@ -174,11 +551,23 @@ public class ClientGUI {
             }
             
             try {
-                out.println(message);
+                String[] parts = message.split("\\s+", 3);
+                if (parts[0].equals("/msg") && parts.length == 3) {
+                    // Private messages get an ACK telling us whether they were delivered
+                    long id = nextMessageId.getAndIncrement();
+                    pendingPrivate.put(id, parts[1] + "\t" + parts[2]);
+                    send(FrameCodec.PRIVATE, id, parts[1], parts[2]);
+                } else if (parts[0].equals("/quit")) {
+                    disconnectFromServer();
+                } else if (message.startsWith("/")) {
+                    send(FrameCodec.COMMAND, nextMessageId.getAndIncrement(), "", message);
+                } else {
+                    send(FrameCodec.CHAT, nextMessageId.getAndIncrement(), "", message);
+                }
                 messageField.setText("");
             } catch (Exception e) {
-                chatArea.append("Failed to send message: " + e.getMessage() + "\n");
+                enqueue(0, "Failed to send message: " + e.getMessage());
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,517 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Links this server to other nodes so their users can chat as if they were
+ * on one server. Started with --cluster-port=P --cluster-secret=S
+ * --peers=host:port,...; each node gets its own client port with --port and
+ * a name with --node. The cluster port listens on loopback unless
+ * --cluster-bind=ADDR names another interface.
+ *
+ * Every node dials every peer and sends over that connection only; what
+ * peers send arrives on the connections they dialed in. Both directions
+ * carry FrameCodec frames after the 4-byte LINK_MAGIC:
+ *
+ *   NODE      target = sender's node name, payload = a random challenge; the
+ *             dialing side sends it first and the accepting side answers
+ *             with its own
+ *   AUTH      payload = HMAC-SHA256 under the shared secret of both
+ *             challenges and the sender's name; the dialing side proves
+ *             itself first, and neither side takes any other frame from a
+ *             node that has not
+ *   SUBSCRIBE / UNSUBSCRIBE   target = room that got its first local
+ *             member / lost its last one
+ *   ONLINE / OFFLINE          target = user who logged in / out there
+ *   CHAT      target = room, id = sequence number, payload = sender, newline, text
+ *   NOTICE    target = room, id = stamp, payload = line (joins, leaves)
+ *   PRIVATE   target = recipient, id = stamp, payload = sender, newline, text
+ *   PING      keeps an idle link from timing out
+ *
+ * Right after the handshake a node sends SUBSCRIBE for each occupied room
+ * and ONLINE for each user it has, so the two maps below are rebuilt from
+ * scratch whenever a link comes back. Room messages go only to nodes that
+ * subscribed to the room, private ones only to the recipient's node.
+ * Frames for one peer queue up while its writer is busy and go out back to
+ * back with one flush, so a burst of traffic costs one write per peer.
+ *
+ * The directory is eventually consistent: a name logged in on two nodes at
+ * the same moment is accepted on both, and a message relayed just as its
+ * recipient leaves is dropped by the receiving node.
+ */
+public class Cluster {
+    static final byte[] LINK_MAGIC = {0, 'C', 'L', 'N'};
+    static final byte NODE = 1;
+    static final byte SUBSCRIBE = 2;
+    static final byte UNSUBSCRIBE = 3;
+    static final byte ONLINE = 4;
+    static final byte OFFLINE = 5;
+    static final byte CHAT = 6;
+    static final byte NOTICE = 7;
+    static final byte PRIVATE = 8;
+    static final byte PING = 9;
+    static final byte AUTH = 10;
+
+    // Frames waiting for one peer; beyond this they are dropped and counted
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final long PING_INTERVAL_MS = 5_000;
+    // A peer that sends nothing, not even PING, for this long is considered gone
+    private static final long LINK_TIMEOUT_MS = 15_000;
+    private static final long CONNECT_TIMEOUT_MS = 3_000;
+    private static final long MIN_RETRY_MS = 500;
+    private static final long MAX_RETRY_MS = 10_000;
+    private static final int CHALLENGE_BYTES = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String nodeId;
+    private final InetAddress bindAddress;
+    private final int port;
+    private final SecretKeySpec secret;
+    private final List<Peer> peers = new ArrayList<>();
+    // Connected outbound links by the name of the node at the other end
+    private final ConcurrentHashMap<String, Peer> links = new ConcurrentHashMap<>();
+    // Held while a new link is registered and sent its announcement, and while
+    // a local change is queued to the links, so no change falls between the two
+    private final Object announceLock = new Object();
+    // Current inbound connection of each node; a newer one replaces an older one
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+    // Room -> nodes with members in it, and user -> node, as told by each node
+    private final ConcurrentHashMap<String, Set<String>> roomNodes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> userNodes = new ConcurrentHashMap<>();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+    private ServerSocket serverSocket;
+    private volatile boolean running = false;
+
+    // peerAddresses are "host:port" of the other nodes' cluster ports; every
+    // node must be given the same secret
+    public Cluster(String nodeId, InetAddress bindAddress, int port, String secret, List<String> peerAddresses) {
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        for (String address : peerAddresses) {
+            int colon = address.lastIndexOf(':');
+            peers.add(new Peer(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port, 50, bindAddress);
+        running = true;
+        ChatServer.log("Cluster node " + nodeId + " listening on " + bindAddress.getHostAddress() + ":" + port
+            + " for " + peers.size() + " peers");
+        daemon(this::acceptLoop, "cluster-accept").start();
+        for (Peer peer : peers) {
+            daemon(peer::run, "cluster-out-" + peer.host + ":" + peer.port).start();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+        for (Socket socket : inbound.values()) {
+            closeQuietly(socket);
+        }
+        // Users of other nodes are no longer reachable from here
+        for (String node : new ArrayList<>(inbound.keySet())) {
+            forget(node);
+        }
+        inbound.clear();
+        ChatServer.log("Cluster: " + getStats());
+    }
+
+    // ---- Called by ChatServer for local events ----
+
+    // A local room got its first member or lost its last one
+    void roomChanged(String room, boolean occupied) {
+        byte[] frame = FrameCodec.encode(occupied ? SUBSCRIBE : UNSUBSCRIBE, 0, room, "", false);
+        synchronized (announceLock) {
+            sendToAll(frame);
+        }
+    }
+
+    // A local user logged in or out
+    void userChanged(String username, boolean online) {
+        byte[] frame = FrameCodec.encode(online ? ONLINE : OFFLINE, 0, username, "", false);
+        synchronized (announceLock) {
+            sendToAll(frame);
+        }
+    }
+
+    // Node a user is logged in on, or null if they are not on another node
+    String nodeOf(String username) {
+        return userNodes.get(username);
+    }
+
+    // Forwards a chat message to every node with members in its room
+    void relayChat(ChatMessage message) {
+        Set<String> nodes = roomNodes.get(message.getRoom());
+        if (nodes != null) {
+            sendToEach(nodes, FrameCodec.encode(CHAT, message.getSentAt(), message.getRoom(),
+                message.getSender() + "\n" + message.getText(), true));
+        }
+    }
+
+    // Forwards a line such as a join or leave notice to the room's other nodes
+    void relayLine(String room, String line, long stamp) {
+        Set<String> nodes = roomNodes.get(room);
+        if (nodes != null) {
+            sendToEach(nodes, FrameCodec.encode(NOTICE, stamp, room, line, true));
+        }
+    }
+
+    // Returns false if the recipient is not known to be on another node
+    boolean relayPrivate(String sender, String recipient, String text, long stamp) {
+        String node = userNodes.get(recipient);
+        if (node == null) {
+            return false;
+        }
+        return send(node, FrameCodec.encode(PRIVATE, stamp, recipient, sender + "\n" + text, true));
+    }
+
+    private void sendToEach(Set<String> nodes, byte[] frame) {
+        for (String node : nodes) {
+            send(node, frame);
+        }
+    }
+
+    private boolean send(String node, byte[] frame) {
+        Peer peer = links.get(node);
+        if (peer == null || !peer.queue.offer(frame)) {
+            framesDropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private void sendToAll(byte[] frame) {
+        for (Peer peer : links.values()) {
+            if (!peer.queue.offer(frame)) {
+                framesDropped.increment();
+            }
+        }
+    }
+
+    // ---- Inbound: frames from other nodes ----
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                daemon(() -> readLink(socket), "cluster-in").start();
+            } catch (IOException e) {
+                if (running) {
+                    ChatServer.log("Cluster accept error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void readLink(Socket socket) {
+        String node = null;
+        try {
+            socket.setSoTimeout((int) LINK_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            byte[] magic = new byte[LINK_MAGIC.length];
+            in.readFully(magic);
+            FrameCodec.Frame hello = FrameCodec.read(in);
+            if (!Arrays.equals(magic, LINK_MAGIC) || hello == null || hello.type != NODE) {
+                throw new IOException("Not a cluster node");
+            }
+            String challenge = newChallenge();
+            out.write(FrameCodec.encode(NODE, 0, nodeId, challenge, false));
+            out.flush();
+            FrameCodec.Frame proof = FrameCodec.read(in);
+            if (proof == null || proof.type != AUTH
+                    || !verify(proof.text, "dial", hello.text, challenge, hello.target)) {
+                ChatServer.log("Cluster link from " + socket.getInetAddress().getHostAddress()
+                    + " refused: bad cluster secret");
+                return;
+            }
+            out.write(FrameCodec.encode(AUTH, 0, "", sign("accept", hello.text, challenge, nodeId), false));
+            out.flush();
+            node = hello.target;
+
+            // A node that reconnects starts over with a full announcement
+            Socket previous = inbound.put(node, socket);
+            if (previous != null) {
+                closeQuietly(previous);
+            }
+            forget(node);
+            ChatServer.log("Cluster node " + node + " connected");
+
+            FrameCodec.Frame frame;
+            while ((frame = FrameCodec.read(in)) != null) {
+                framesIn.increment();
+                handle(node, frame);
+            }
+        } catch (SocketTimeoutException e) {
+            ChatServer.log("Cluster node " + node + " timed out");
+        } catch (IOException e) {
+            if (running && node != null) {
+                ChatServer.log("Cluster link from " + node + " failed: " + e.getMessage());
+            }
+        } finally {
+            closeQuietly(socket);
+            if (node != null && inbound.remove(node, socket)) {
+                forget(node);
+                ChatServer.log("Cluster node " + node + " disconnected");
+            }
+        }
+    }
+
+    private void handle(String node, FrameCodec.Frame frame) {
+        switch (frame.type) {
+            case SUBSCRIBE:
+                roomNodes.computeIfAbsent(frame.target, room -> ConcurrentHashMap.newKeySet()).add(node);
+                break;
+            case UNSUBSCRIBE:
+                roomNodes.computeIfPresent(frame.target, (room, nodes) -> {
+                    nodes.remove(node);
+                    return nodes.isEmpty() ? null : nodes;
+                });
+                break;
+            case ONLINE:
+                userNodes.put(frame.target, node);
+                if (!ChatServer.sessionsByName.containsKey(frame.target)) {
+                    ChatServer.presence.online(frame.target);
+                }
+                break;
+            case OFFLINE:
+                if (userNodes.remove(frame.target, node) && !ChatServer.sessionsByName.containsKey(frame.target)) {
+                    ChatServer.presence.offline(frame.target);
+                }
+                break;
+            case CHAT: {
+                int split = frame.text.indexOf('\n');
+                String sender = frame.text.substring(0, split);
+                String text = frame.text.substring(split + 1);
+                String line = ChatSession.roomLabel(frame.target) + "[" + sender + "]: " + text;
+                // Kept for replay here too, under the number it got where it
+                // was said; that node persists it
+                ChatServer.deliverRelayedChat(new ChatMessage(0, sender, null, frame.target, text,
+                    ChatMessage.PUBLIC, frame.messageId, true), line);
+                break;
+            }
+            case NOTICE:
+                ChatServer.deliverToRoom(frame.target, frame.text, null, frame.messageId, 0);
+                break;
+            case PRIVATE: {
+                int split = frame.text.indexOf('\n');
+                String sender = frame.text.substring(0, split);
+                String text = frame.text.substring(split + 1);
+                if (ChatServer.sendPrivate(frame.target, "[PM from " + sender + "]: " + text)) {
+                    ChatServer.remember(HistoryCache.conversationKey(sender, frame.target),
+                        new ChatMessage(0, sender, frame.target, null, text, ChatMessage.PRIVATE, frame.messageId, true));
+                }
+                break;
+            }
+            default:
+                // PING, or something from a newer node
+                break;
+        }
+    }
+
+    // Drops everything a node told us, e.g. because its link went away
+    private void forget(String node) {
+        roomNodes.forEach((room, nodes) -> {
+            nodes.remove(node);
+            if (nodes.isEmpty()) {
+                roomNodes.remove(room, nodes);
+            }
+        });
+        for (Map.Entry<String, String> entry : userNodes.entrySet()) {
+            if (entry.getValue().equals(node) && userNodes.remove(entry.getKey(), node)
+                    && !ChatServer.sessionsByName.containsKey(entry.getKey())) {
+                ChatServer.presence.offline(entry.getKey());
+            }
+        }
+    }
+
+    // ---- Outbound: one dialing thread per configured peer ----
+
+    private final class Peer {
+        final String host;
+        final int port;
+        final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile Socket socket;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        // Connects, announces local state and sends until the link fails; then
+        // tries again after a growing pause
+        void run() {
+            long retry = MIN_RETRY_MS;
+            String lastError = null;
+            while (running) {
+                String node = null;
+                try {
+                    socket = new Socket();
+                    socket.connect(new InetSocketAddress(host, port), (int) CONNECT_TIMEOUT_MS);
+                    socket.setTcpNoDelay(true);
+                    socket.setKeepAlive(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    String challenge = newChallenge();
+                    out.write(LINK_MAGIC);
+                    out.write(FrameCodec.encode(NODE, 0, nodeId, challenge, false));
+                    out.flush();
+                    socket.setSoTimeout((int) LINK_TIMEOUT_MS);
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    FrameCodec.Frame reply = FrameCodec.read(in);
+                    if (reply == null || reply.type != NODE) {
+                        throw new IOException("Not a cluster node");
+                    }
+                    out.write(FrameCodec.encode(AUTH, 0, "", sign("dial", challenge, reply.text, nodeId), false));
+                    out.flush();
+                    // Local state is only announced to a node that knows the secret too
+                    FrameCodec.Frame proof = FrameCodec.read(in);
+                    if (proof == null || proof.type != AUTH
+                            || !verify(proof.text, "accept", challenge, reply.text, reply.target)) {
+                        throw new IOException("Cluster secret refused");
+                    }
+                    node = reply.target;
+                    retry = MIN_RETRY_MS;
+                    lastError = null;
+
+                    // Anything queued before is stale; live changes queue up
+                    // behind the announcement, and none can slip in between
+                    // registering the link and taking the snapshot
+                    synchronized (announceLock) {
+                        queue.clear();
+                        links.put(node, this);
+                        for (String room : ChatServer.rooms.roomSizes().keySet()) {
+                            queue.offer(FrameCodec.encode(SUBSCRIBE, 0, room, "", false));
+                        }
+                        for (String user : ChatServer.sessionsByName.keySet()) {
+                            queue.offer(FrameCodec.encode(ONLINE, 0, user, "", false));
+                        }
+                    }
+                    writeLoop(out);
+                } catch (IOException e) {
+                    // Only log when the reason changes, not on every retry
+                    if (running && !String.valueOf(e.getMessage()).equals(lastError)) {
+                        ChatServer.log("Cluster link to " + host + ":" + port + " failed: " + e.getMessage());
+                        lastError = String.valueOf(e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    if (node != null) {
+                        links.remove(node, this);
+                    }
+                    closeQuietly(socket);
+                }
+                try {
+                    Thread.sleep(retry);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                retry = Math.min(retry * 2, MAX_RETRY_MS);
+            }
+        }
+
+        private void writeLoop(OutputStream out) throws IOException, InterruptedException {
+            while (running) {
+                byte[] frame = queue.poll(PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    frame = FrameCodec.encode(PING, 0, "", "", false);
+                }
+                do {
+                    out.write(frame);
+                    framesOut.increment();
+                } while ((frame = queue.poll()) != null);
+                out.flush();
+            }
+        }
+
+        void close() {
+            closeQuietly(socket);
+        }
+    }
+
+    public String getStats() {
+        return "node=" + nodeId + " links=" + links.size() + "/" + peers.size() + " inbound=" + inbound.size()
+            + " remoteUsers=" + userNodes.size() + " remoteRooms=" + roomNodes.size()
+            + " framesOut=" + framesOut.sum() + " framesIn=" + framesIn.sum() + " dropped=" + framesDropped.sum();
+    }
+
+    // ---- Link handshake ----
+
+    private static String newChallenge() {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        RANDOM.nextBytes(challenge);
+        return HexFormat.of().formatHex(challenge);
+    }
+
+    // HMAC of both challenges and the signer's name; role keeps the dialing
+    // side's proof from being replayed as the accepting side's
+    private String sign(String role, String dialChallenge, String acceptChallenge, String node) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            byte[] digest = mac.doFinal((role + "\n" + dialChallenge + "\n" + acceptChallenge + "\n" + node)
+                .getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    private boolean verify(String proof, String role, String dialChallenge, String acceptChallenge, String node) {
+        byte[] expected = sign(role, dialChallenge, acceptChallenge, node).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, proof.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small bounded JDBC connection pool. Each pooled connection keeps its own
+ * cache of prepared statements, so hot queries are parsed once per
+ * connection instead of once per call. Works with any JDBC URL, so an
+ * embedded in-process database can stand in for MySQL.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final int STATEMENT_CACHE_SIZE = 32;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long validateAfterIdleMillis;
+
+    private final Semaphore permits;
+    // Most recently used first, so a few hot connections serve light load
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private volatile boolean closed = false;
+
+    // Metrics
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    public ConnectionPool(String url, String user, String password, int maxSize,
+                          long borrowTimeoutMillis, long validateAfterIdleMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    public PooledConnection borrow() throws SQLException {
+        return borrow(null);
+    }
+
+    // Same; timer, if given, records how long the connection is out of the
+    // pool, waiting for it included, once it is closed
+    public PooledConnection borrow(LatencyHistogram timer) throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        borrows.increment();
+
+        try {
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (isHealthy(connection)) {
+                    active.incrementAndGet();
+                    return connection.lend(timer, start);
+                }
+                discard(connection);
+            }
+            connection = new PooledConnection(DriverManager.getConnection(url, user, password));
+            created.increment();
+            active.incrementAndGet();
+            return connection.lend(timer, start);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void release(PooledConnection connection) {
+        active.decrementAndGet();
+        try {
+            if (closed || connection.broken || connection.connection.isClosed()) {
+                discard(connection);
+            } else {
+                connection.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(connection);
+            }
+        } catch (SQLException e) {
+            discard(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean isHealthy(PooledConnection connection) {
+        if (System.currentTimeMillis() - connection.lastUsed < validateAfterIdleMillis) {
+            return true;
+        }
+        try {
+            return connection.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // Validates every idle connection and drops the dead ones; returns how many were dropped
+    public int healthCheck() {
+        int dropped = 0;
+        for (int i = idle.size(); i > 0; i--) {
+            PooledConnection connection = idle.pollLast();
+            if (connection == null) break;
+            boolean valid;
+            try {
+                valid = connection.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                valid = false;
+            }
+            if (valid) {
+                connection.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(connection);
+            } else {
+                discard(connection);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    private void discard(PooledConnection connection) {
+        discarded.increment();
+        connection.closeStatements();
+        try {
+            connection.connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            discard(connection);
+        }
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getBorrowCount() {
+        return borrows.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = borrows.sum();
+        return count == 0 ? 0 : waitNanos.sum() / 1e6 / count;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public String getStats() {
+        return String.format("active=%d idle=%d max=%d borrows=%d avgWait=%.3fms maxWait=%.3fms timeouts=%d created=%d discarded=%d",
+            getActiveCount(), getIdleCount(), maxSize, getBorrowCount(), getAverageWaitMillis(),
+            getMaxWaitMillis(), getTimeoutCount(), created.sum(), discarded.sum());
+    }
+
+    /**
+     * A borrowed connection. close() hands it back to the pool; statements
+     * obtained from prepare() stay cached and must not be closed by callers.
+     */
+    public final class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements =
+            new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > STATEMENT_CACHE_SIZE) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        private long lastUsed = System.currentTimeMillis();
+        private boolean broken = false;
+        // Set for each borrower
+        private LatencyHistogram timer;
+        private long borrowedNanos;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        private PooledConnection lend(LatencyHistogram timer, long borrowedNanos) {
+            this.timer = timer;
+            this.borrowedNanos = borrowedNanos;
+            return this;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return prepare(sql, Statement.NO_GENERATED_KEYS);
+        }
+
+        public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : sql;
+            PreparedStatement statement = statements.get(key);
+            if (statement == null || statement.isClosed()) {
+                statement = connection.prepareStatement(sql, autoGeneratedKeys);
+                statements.put(key, statement);
+            }
+            return statement;
+        }
+
+        // Drops the connection instead of returning it, e.g. after a connection-level error
+        public void markBroken() {
+            broken = true;
+        }
+
+        // Marks the connection broken if e indicates the link itself failed
+        public void checkBroken(SQLException e) {
+            String state = e.getSQLState();
+            if (state != null && state.startsWith("08")) {
+                broken = true;
+            }
+        }
+
+        private void closeStatements() {
+            for (PreparedStatement statement : statements.values()) {
+                closeQuietly(statement);
+            }
+            statements.clear();
+        }
+
+        private void closeQuietly(Statement statement) {
+            try {
+                statement.close();
+            } catch (SQLException ignored) {
+            }
+        }
+
+        @Override
+        public void close() {
+            if (timer != null) {
+                timer.recordSince(borrowedNanos);
+                timer = null;
+            }
+            release(this);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rate limits for what clients send, checked by the transports before a
+ * line or frame reaches handleLine()/handleFrame(), so a flood is stopped
+ * before it is logged or broadcast. Every connection has a message bucket
+ * and a byte bucket; every logged-in user has another pair that survives
+ * reconnects, so logging in again does not reset the allowance.
+ *
+ * What happens to a message over the limit is set with --flood-action:
+ *   delay        the message waits and the transport stops reading until
+ *                it may go; TCP then pushes back on the sender (default)
+ *   drop         the message is discarded and the client told so
+ *   disconnect   the client is disconnected
+ *
+ * Sizes are counted in characters of the decoded line or frame text.
+ */
+public final class FloodControl {
+    public enum Action { DELAY, DROP, DISCONNECT }
+
+    // Results of admit() besides a wait in nanoseconds
+    static final long ADMIT = 0;
+    static final long DROP = -1;
+    static final long CLOSE = -2;
+
+    // Above this many per-user entries, ones that have refilled are cleared out
+    private static final int MAX_IDLE_USERS = 10_000;
+
+    private final double messageRate;
+    private final long messageBurst;
+    private final double byteRate;
+    private final long byteBurst;
+    private final double userMessageRate;
+    private final long userMessageBurst;
+    private final double userByteRate;
+    private final long userByteBurst;
+    private final Action action;
+    private final ConcurrentHashMap<String, Buckets> users = new ConcurrentHashMap<>();
+
+    // The message and byte allowance of one connection or user; a null
+    // bucket means that dimension is not limited
+    static final class Buckets {
+        final TokenBucket messages;
+        final TokenBucket bytes;
+
+        Buckets(double messageRate, long messageBurst, double byteRate, long byteBurst) {
+            this.messages = messageRate > 0 ? new TokenBucket(messageRate, messageBurst) : null;
+            this.bytes = byteRate > 0 ? new TokenBucket(byteRate, byteBurst) : null;
+        }
+
+        long tryAcquire(int size, long now) {
+            long wait = messages == null ? 0 : messages.tryAcquire(1, now);
+            if (wait == 0 && bytes != null) {
+                wait = bytes.tryAcquire(size, now);
+                if (wait > 0 && messages != null) {
+                    messages.refund(1);
+                }
+            }
+            return wait;
+        }
+
+        void refund(int size) {
+            if (messages != null) {
+                messages.refund(1);
+            }
+            if (bytes != null) {
+                bytes.refund(size);
+            }
+        }
+
+        long reserve(int size, long now) {
+            long wait = messages == null ? 0 : messages.reserve(1, now);
+            return bytes == null ? wait : Math.max(wait, bytes.reserve(size, now));
+        }
+
+        boolean isFull(long now) {
+            return (messages == null || messages.isFull(now)) && (bytes == null || bytes.isFull(now));
+        }
+    }
+
+    // Rates are per second, bursts how much may arrive at once; a rate of 0
+    // turns that limit off
+    public FloodControl(double messageRate, long messageBurst, double byteRate, long byteBurst,
+                        double userMessageRate, long userMessageBurst, double userByteRate, long userByteBurst,
+                        Action action) {
+        this.messageRate = messageRate;
+        this.messageBurst = messageBurst;
+        this.byteRate = byteRate;
+        this.byteBurst = byteBurst;
+        this.userMessageRate = userMessageRate;
+        this.userMessageBurst = userMessageBurst;
+        this.userByteRate = userByteRate;
+        this.userByteBurst = userByteBurst;
+        this.action = action;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    // Fresh allowance for a new connection
+    Buckets newConnection() {
+        return new Buckets(messageRate, messageBurst, byteRate, byteBurst);
+    }
+
+    // The user's allowance, carried over from earlier sessions if they were
+    // still using it up
+    Buckets forUser(String username) {
+        if (userMessageRate <= 0 && userByteRate <= 0) {
+            return null;
+        }
+        if (users.size() > MAX_IDLE_USERS) {
+            long now = System.nanoTime();
+            users.values().removeIf(buckets -> buckets.isFull(now));
+        }
+        return users.computeIfAbsent(username,
+            name -> new Buckets(userMessageRate, userMessageBurst, userByteRate, userByteBurst));
+    }
+
+    // Forgets a user who logged out with a full allowance, which is the same
+    // as the one a new entry would get
+    void release(String username) {
+        Buckets buckets = users.get(username);
+        if (buckets != null && buckets.isFull(System.nanoTime())) {
+            users.remove(username, buckets);
+        }
+    }
+
+    // Charges one message of size characters to the connection and, once
+    // logged in, the user. Returns ADMIT, a wait in nanoseconds before the
+    // message may be handled (DELAY), DROP or CLOSE; only counts, the
+    // caller tells the client.
+    long admit(Buckets connection, Buckets user, int size) {
+        long now = System.nanoTime();
+        if (action == Action.DELAY) {
+            long wait = connection.reserve(size, now);
+            if (user != null) {
+                wait = Math.max(wait, user.reserve(size, now));
+            }
+            if (wait > 0) {
+                Metrics.floodDelayed.increment();
+            }
+            return wait;
+        }
+        long wait = connection.tryAcquire(size, now);
+        if (wait == 0 && user != null && user.tryAcquire(size, now) > 0) {
+            connection.refund(size);
+            wait = 1;
+        }
+        if (wait == 0) {
+            return ADMIT;
+        }
+        if (action == Action.DROP) {
+            Metrics.floodDropped.increment();
+            return DROP;
+        }
+        Metrics.floodDisconnects.increment();
+        return CLOSE;
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary wire protocol, version 1. A binary client opens with the 4-byte
+ * MAGIC (its leading zero byte can never start a legacy username line) and
+ * a HELLO frame; after that every message is one frame:
+ *
+ *   int    length of everything after this field
+ *   byte   version
+ *   byte   type
+ *   byte   flags       FLAG_DEFLATE: payload is deflate-compressed
+ *   long   message id  echoed in ACK/ERROR replies, 0 if unused
+ *   short  target length, then target as UTF-8 (room or recipient, may be empty)
+ *   bytes  payload (UTF-8 text)
+ *
+ * HELLO carries the username as target and a comma-separated capability
+ * list as payload; HELLO_ACK answers with the capabilities both sides
+ * support. Compression is only used once both agreed on "deflate".
+ *
+ * TEXT frames carry the server time of the line (epoch millis) as their
+ * message id. Chat lines of a room also name the room as target; their
+ * message id is then the room's sequence number (see RoomSequences), which
+ * is also the time the message was sent. A client pages back through the
+ * current room by sending HISTORY with the oldest time it has as message
+ * id; the reply is one HISTORY frame whose payload holds the older lines,
+ * oldest first and newline-separated, and whose message id is the time to
+ * ask with next (0 when there is nothing older).
+ *
+ * Clients that offer "presence" get a PRESENCE frame with target "snapshot"
+ * listing everyone online right after login, then PRESENCE frames with the
+ * changes, coalesced and sent a few times per second at most. Each payload
+ * line is "+name status" (joined or changed status) or "-name" (left).
+ *
+ * Clients that offer "resume" may add "resume <room> <sequence>" lines to
+ * HELLO after a dropped connection, one per room they were in, the room
+ * they were talking in first. The server puts them back in those rooms,
+ * replays what was said there after each sequence number instead of the
+ * usual recent lines, and does not announce the rejoin to the rooms if
+ * their leaving was never announced either.
+ */
+public final class FrameCodec {
+    public static final byte[] MAGIC = {0, 'C', 'H', 'T'};
+    public static final byte VERSION = 1;
+
+    // Frame types
+    public static final byte HELLO = 1;       // client -> server
+    public static final byte HELLO_ACK = 2;   // server -> client
+    public static final byte CHAT = 3;        // client -> server, target = room or empty for current
+    public static final byte PRIVATE = 4;     // client -> server, target = recipient
+    public static final byte COMMAND = 5;     // client -> server, payload = slash command
+    public static final byte TEXT = 6;        // server -> client, one display line
+    public static final byte ACK = 7;         // server -> client, payload = DELIVERED/OFFLINE
+    public static final byte ERROR = 8;       // server -> client
+    public static final byte QUIT = 9;        // client -> server
+    public static final byte HISTORY = 10;    // both ways, see below
+    public static final byte PRESENCE = 11;   // server -> client, roster snapshot or changes
+    public static final byte PING = 12;       // either way; answered with PONG, same message id
+    public static final byte PONG = 13;
+
+    public static final byte FLAG_DEFLATE = 1;
+    public static final String CAP_DEFLATE = "deflate";
+    public static final String CAP_PRESENCE = "presence";
+    public static final String CAP_RESUME = "resume";
+
+    // Fixed part after the length field: version, type, flags, id, target length
+    private static final int FIXED_SIZE = 1 + 1 + 1 + 8 + 2;
+    // Header of a frame with an empty target, including the length field
+    public static final int TEXT_HEADER_SIZE = 4 + FIXED_SIZE;
+    // Room names are at most 32 ASCII characters
+    public static final int MAX_TEXT_HEADER_SIZE = TEXT_HEADER_SIZE + 32;
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+    // Payloads at least this large are compressed when the peer allows it
+    public static final int COMPRESS_THRESHOLD = 512;
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private FrameCodec() {
+    }
+
+    public static final class Frame {
+        public final byte type;
+        public final long messageId;
+        public final String target;
+        public final String text;
+
+        public Frame(byte type, long messageId, String target, String text) {
+            this.type = type;
+            this.messageId = messageId;
+            this.target = target;
+            this.text = text;
+        }
+    }
+
+    // Encodes a complete frame, length field included
+    public static byte[] encode(byte type, long messageId, String target, String text, boolean compress) {
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = payload.length;
+        byte flags = 0;
+        if (compress && payload.length >= COMPRESS_THRESHOLD) {
+            payload = deflate(payload, 0, payload.length);
+            payloadLength = payload.length;
+            flags = FLAG_DEFLATE;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + FIXED_SIZE + targetBytes.length + payloadLength);
+        buffer.putInt(FIXED_SIZE + targetBytes.length + payloadLength);
+        buffer.put(VERSION).put(type).put(flags).putLong(messageId);
+        buffer.putShort((short) targetBytes.length).put(targetBytes);
+        buffer.put(payload, 0, payloadLength);
+        return buffer.array();
+    }
+
+    // Writes the header of a TEXT frame with an empty target into dst; returns its size
+    public static int writeTextHeader(byte[] dst, int payloadLength, byte flags, long messageId) {
+        return writeTextHeader(dst, payloadLength, flags, messageId, EMPTY);
+    }
+
+    // Same with target as UTF-8; dst must hold TEXT_HEADER_SIZE + target.length bytes
+    public static int writeTextHeader(byte[] dst, int payloadLength, byte flags, long messageId, byte[] target) {
+        putInt(dst, 0, FIXED_SIZE + target.length + payloadLength);
+        dst[4] = VERSION;
+        dst[5] = TEXT;
+        dst[6] = flags;
+        for (int i = 0; i < 8; i++) {
+            dst[7 + i] = (byte) (messageId >>> (56 - 8 * i));
+        }
+        dst[15] = (byte) (target.length >>> 8);
+        dst[16] = (byte) target.length;
+        System.arraycopy(target, 0, dst, TEXT_HEADER_SIZE, target.length);
+        return TEXT_HEADER_SIZE + target.length;
+    }
+
+    // Decodes the bytes following a frame's length field
+    public static Frame decode(byte[] data, int offset, int length) throws IOException {
+        if (length < FIXED_SIZE) {
+            throw new IOException("Truncated frame");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        long messageId = buffer.getLong();
+        int targetLength = buffer.getShort() & 0xFFFF;
+        if (targetLength > buffer.remaining()) {
+            throw new IOException("Truncated frame target");
+        }
+        String target = new String(data, buffer.position(), targetLength, StandardCharsets.UTF_8);
+        int payloadStart = buffer.position() + targetLength;
+        int payloadLength = offset + length - payloadStart;
+
+        String text;
+        if ((flags & FLAG_DEFLATE) != 0) {
+            text = new String(inflate(data, payloadStart, payloadLength), StandardCharsets.UTF_8);
+        } else {
+            text = new String(data, payloadStart, payloadLength, StandardCharsets.UTF_8);
+        }
+        return new Frame(type, messageId, target, text);
+    }
+
+    // Reads one frame from a blocking stream; returns null at end of stream
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkLength(length);
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return decode(data, 0, length);
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < FIXED_SIZE || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    public static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+            | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    public static byte[] deflate(byte[] data, int offset, int length) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 2));
+        byte[] chunk = new byte[4096];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(chunk);
+            out.write(chunk, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] inflate(byte[] data, int offset, int length) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 3);
+        byte[] chunk = new byte[4096];
+        try {
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Corrupt compressed payload");
+                }
+                out.write(chunk, 0, count);
+                if (out.size() > MAX_FRAME_LENGTH) {
+                    throw new IOException("Compressed payload expands beyond frame limit");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,453 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Recent messages per room and per private conversation, kept in small
+ * fixed-size rings so joining users can be shown the latest lines without
+ * a database round trip. The total size across all rings is bounded: when
+ * it goes over budget the least recently used rings are dropped whole.
+ *
+ * Requests for more history than a ring holds fall back to the database
+ * when persistence is enabled. Lookups therefore hand their result to a
+ * callback: on the caller's thread when the ring answers, otherwise on a
+ * small pool of database threads, so a cache miss never turns into JDBC
+ * on an NIO event loop.
+ */
+public class HistoryCache {
+    // Rough per-entry overhead on top of the text itself
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+    private static final int DATABASE_THREADS = 4;
+    private static final int DATABASE_QUEUE_CAPACITY = 1024;
+
+    private final int perKeyCapacity;
+    private final long maxBytes;
+    private final boolean databaseFallback;
+    // Runs the database fallback; null without one
+    private final ThreadPoolExecutor database;
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public HistoryCache(int perKeyCapacity, long maxBytes, boolean databaseFallback) {
+        this.perKeyCapacity = perKeyCapacity;
+        this.maxBytes = maxBytes;
+        this.databaseFallback = databaseFallback;
+        if (databaseFallback) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            database = new ThreadPoolExecutor(DATABASE_THREADS, DATABASE_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(DATABASE_QUEUE_CAPACITY), r -> {
+                    Thread thread = new Thread(r, "history-db-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        } else {
+            database = null;
+        }
+    }
+
+    public static String roomKey(String room) {
+        return "#" + room;
+    }
+
+    // Same key whichever side of the conversation asks
+    public static String conversationKey(String user1, String user2) {
+        return user1.compareTo(user2) < 0 ? "@" + user1 + "|" + user2 : "@" + user2 + "|" + user1;
+    }
+
+    public void add(String key, ChatMessage message) {
+        Ring ring = ring(key);
+        long delta = ring.add(message);
+        // Skip the accounting if the ring was evicted while we were adding
+        if (rings.get(key) == ring) {
+            totalBytes.addAndGet(delta);
+        }
+        if (totalBytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    // Latest messages of a room, oldest first
+    public void recentInRoom(String room, int limit, Consumer<List<ChatMessage>> done) {
+        List<ChatMessage> cached = recent(roomKey(room), limit);
+        if (cached != null) {
+            done.accept(cached);
+            return;
+        }
+        query(() -> mergeNewer(JdbcConnectivity.getRoomPage(room, JdbcConnectivity.NO_CURSOR, true, limit),
+            roomKey(room), limit), done);
+    }
+
+    // Latest messages between two users, oldest first
+    public void recentInConversation(String user1, String user2, int limit, Consumer<List<ChatMessage>> done) {
+        String key = conversationKey(user1, user2);
+        List<ChatMessage> cached = recent(key, limit);
+        if (cached != null) {
+            done.accept(cached);
+            return;
+        }
+        query(() -> {
+            int id1 = JdbcConnectivity.findUserId(user1);
+            int id2 = JdbcConnectivity.findUserId(user2);
+            List<ChatMessage> stored = id1 < 0 || id2 < 0
+                ? new ArrayList<>()
+                : JdbcConnectivity.getConversationPage(id1, id2, JdbcConnectivity.NO_CURSOR, true, limit);
+            return mergeNewer(stored, key, limit);
+        }, done);
+    }
+
+    // Up to limit room messages numbered before beforeSequence, oldest first;
+    // used to page back through a room. The ring answers if it reaches back
+    // far enough, otherwise the database does.
+    public void olderInRoom(String room, long beforeSequence, int limit, Consumer<List<ChatMessage>> done) {
+        Ring ring = rings.get(roomKey(room));
+        if (ring != null) {
+            List<ChatMessage> cached = ring.before(beforeSequence, limit);
+            if (cached.size() >= limit || ring.complete || !databaseFallback) {
+                hits.increment();
+                done.accept(cached);
+                return;
+            }
+        }
+        if (!databaseFallback) {
+            hits.increment();
+            done.accept(new ArrayList<>());
+            return;
+        }
+        misses.increment();
+        query(() -> JdbcConnectivity.getRoomPageBefore(room, beforeSequence, limit), done);
+    }
+
+    // The latest limit room messages numbered after afterSequence and up to
+    // throughSequence, oldest first; what a reconnecting client missed. The
+    // ring answers if it reaches back far enough, otherwise the database
+    // does, topped up with what the ring holds that may not be written yet.
+    public void betweenInRoom(String room, long afterSequence, long throughSequence, int limit,
+                              Consumer<List<ChatMessage>> done) {
+        Ring ring = rings.get(roomKey(room));
+        if (ring != null) {
+            List<ChatMessage> cached = ring.between(afterSequence, throughSequence, limit);
+            if (cached.size() >= limit || ring.oldest() <= afterSequence || ring.complete || !databaseFallback) {
+                hits.increment();
+                done.accept(cached);
+                return;
+            }
+        }
+        if (!databaseFallback) {
+            hits.increment();
+            done.accept(new ArrayList<>());
+            return;
+        }
+        misses.increment();
+        query(() -> {
+            List<ChatMessage> stored = JdbcConnectivity.getRoomPageBetween(room, afterSequence, throughSequence,
+                limit);
+            if (ring != null) {
+                long newestStored = stored.isEmpty() ? afterSequence : stored.get(stored.size() - 1).getSentAt();
+                stored.addAll(ring.between(newestStored, throughSequence, limit));
+            }
+            int extra = stored.size() - limit;
+            return extra > 0 ? new ArrayList<>(stored.subList(extra, stored.size())) : stored;
+        }, done);
+    }
+
+    // What the ring alone holds of a room after afterSequence and up to
+    // throughSequence, oldest first; never asks the database
+    public List<ChatMessage> cachedBetweenInRoom(String room, long afterSequence, long throughSequence, int limit) {
+        Ring ring = rings.get(roomKey(room));
+        return ring == null ? new ArrayList<>() : ring.between(afterSequence, throughSequence, limit);
+    }
+
+    // Messages stored under key that were sent at one of sentAts, in that
+    // order; the form in which SearchIndex returns hits. A room's sequence
+    // numbers are unique; two messages of a conversation can share a
+    // millisecond, and the database only keeps a conversation's times to
+    // the second, so callers check the text of what comes back.
+    public void at(String key, long[] sentAts, Consumer<List<ChatMessage>> done) {
+        Ring ring = rings.get(key);
+        List<List<ChatMessage>> found = new ArrayList<>(sentAts.length);
+        boolean missed = false;
+        for (long sentAt : sentAts) {
+            List<ChatMessage> cached = ring == null ? new ArrayList<>() : ring.at(sentAt);
+            if (cached.isEmpty() && databaseFallback
+                    && (ring == null || (ring.oldest() > sentAt && !ring.complete))) {
+                // Older than the ring: only the database can tell
+                found.add(null);
+                missed = true;
+            } else {
+                found.add(cached);
+            }
+        }
+        if (!missed) {
+            hits.increment();
+            done.accept(flatten(found));
+            return;
+        }
+        misses.increment();
+        query(() -> {
+            for (int i = 0; i < sentAts.length; i++) {
+                if (found.get(i) == null) {
+                    found.set(i, stored(key, sentAts[i]));
+                }
+            }
+            return flatten(found);
+        }, done);
+    }
+
+    private static List<ChatMessage> stored(String key, long sentAt) {
+        if (key.startsWith("#")) {
+            return JdbcConnectivity.getRoomPageBetween(key.substring(1), sentAt - 1, sentAt, 1);
+        }
+        int split = key.indexOf('|');
+        return JdbcConnectivity.getConversationAround(key.substring(1, split), key.substring(split + 1), sentAt);
+    }
+
+    private static List<ChatMessage> flatten(List<List<ChatMessage>> lists) {
+        List<ChatMessage> result = new ArrayList<>();
+        for (List<ChatMessage> list : lists) {
+            result.addAll(list);
+        }
+        return result;
+    }
+
+    // Runs a database lookup on the history pool and hands its result to
+    // done there. A full pool hands done an empty result on the caller's
+    // thread rather than waiting.
+    private void query(Supplier<List<ChatMessage>> lookup, Consumer<List<ChatMessage>> done) {
+        try {
+            database.execute(() -> done.accept(lookup.get()));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            done.accept(new ArrayList<>());
+        }
+    }
+
+    // Cached messages if the ring can answer on its own, otherwise null
+    private List<ChatMessage> recent(String key, int limit) {
+        Ring ring = rings.get(key);
+        if (ring != null && (ring.size() >= limit || ring.complete || !databaseFallback)) {
+            hits.increment();
+            return ring.latest(limit);
+        }
+        if (!databaseFallback) {
+            hits.increment();
+            return new ArrayList<>();
+        }
+        misses.increment();
+        return null;
+    }
+
+    // Appends cached messages that are newer than the stored page, since the
+    // write-behind persister may not have flushed them yet
+    private List<ChatMessage> mergeNewer(List<ChatMessage> stored, String key, int limit) {
+        Ring ring = ring(key);
+        if (stored.size() < limit && (stored.isEmpty() || ring.oldest() <= stored.get(0).getSentAt())) {
+            // Everything the database holds is in the ring too, so the ring
+            // alone can answer until it drops its oldest entry
+            ring.markComplete();
+        }
+        long newestStored = stored.isEmpty() ? Long.MIN_VALUE : stored.get(stored.size() - 1).getSentAt();
+        for (ChatMessage message : ring.latest(perKeyCapacity)) {
+            if (message.getSentAt() > newestStored) {
+                stored.add(message);
+            }
+        }
+        int extra = stored.size() - limit;
+        return extra > 0 ? new ArrayList<>(stored.subList(extra, stored.size())) : stored;
+    }
+
+    // A ring as it was when eviction started; lastAccess keeps moving, so the
+    // sort works on this copy of it
+    private static final class Candidate {
+        final String key;
+        final Ring ring;
+        final long lastAccess;
+
+        Candidate(String key, Ring ring, long lastAccess) {
+            this.key = key;
+            this.ring = ring;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    // Drops least recently used rings until the cache is back under 90% of
+    // budget, from one snapshot sorted once rather than a scan per victim
+    private synchronized void evict() {
+        long target = maxBytes * 9 / 10;
+        if (totalBytes.get() <= target) return;
+        List<Candidate> candidates = new ArrayList<>(rings.size());
+        for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+            candidates.add(new Candidate(entry.getKey(), entry.getValue(), entry.getValue().lastAccess));
+        }
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+        for (Candidate candidate : candidates) {
+            if (totalBytes.get() <= target) break;
+            if (rings.remove(candidate.key, candidate.ring)) {
+                totalBytes.addAndGet(-candidate.ring.bytes());
+                evictions.increment();
+            }
+        }
+    }
+
+    private Ring ring(String key) {
+        return rings.computeIfAbsent(key, k -> {
+            Ring ring = new Ring(perKeyCapacity);
+            totalBytes.addAndGet(ring.bytes);
+            return ring;
+        });
+    }
+
+    public void clear() {
+        rings.clear();
+        totalBytes.set(0);
+    }
+
+    // Stops the database threads; lookups still running finish on their own
+    public void close() {
+        if (database != null) {
+            database.shutdown();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public String getStats() {
+        return String.format("keys=%d bytes=%d hits=%d misses=%d evictions=%d rejected=%d",
+            rings.size(), totalBytes.get(), hits.sum(), misses.sum(), evictions.sum(), rejected.sum());
+    }
+
+    private static long sizeOf(ChatMessage message) {
+        return ENTRY_OVERHEAD_BYTES + 2L * message.getText().length();
+    }
+
+    private static final class Ring {
+        private final ChatMessage[] entries;
+        private int head = 0;   // next slot to write
+        private int size = 0;
+        private long bytes;
+        private volatile long lastAccess = System.nanoTime();
+        // Set once the database is known to hold nothing older than the ring;
+        // cleared for good once the ring overwrites an entry, since from then
+        // on the database holds lines the ring no longer has
+        private volatile boolean complete = false;
+        private boolean wrapped = false;
+
+        Ring(int capacity) {
+            entries = new ChatMessage[capacity];
+            bytes = 64 + 8L * capacity;
+        }
+
+        // Returns the change in retained bytes
+        synchronized long add(ChatMessage message) {
+            long delta = sizeOf(message);
+            ChatMessage overwritten = entries[head];
+            if (overwritten != null) {
+                delta -= sizeOf(overwritten);
+                wrapped = true;
+                complete = false;
+            }
+            entries[head] = message;
+            head = (head + 1) % entries.length;
+            size = Math.min(size + 1, entries.length);
+            bytes += delta;
+            lastAccess = System.nanoTime();
+            return delta;
+        }
+
+        synchronized List<ChatMessage> latest(int limit) {
+            int count = Math.min(limit, size);
+            List<ChatMessage> result = new ArrayList<>(count);
+            int start = head - count;
+            for (int i = 0; i < count; i++) {
+                result.add(entries[Math.floorMod(start + i, entries.length)]);
+            }
+            lastAccess = System.nanoTime();
+            return result;
+        }
+
+        // Latest entries sent before beforeMillis, oldest first
+        synchronized List<ChatMessage> before(long beforeMillis, int limit) {
+            List<ChatMessage> result = new ArrayList<>(Math.min(limit, size));
+            // Walk back from the newest entry, skipping anything too new
+            for (int i = 1; i <= size && result.size() < limit; i++) {
+                ChatMessage message = entries[Math.floorMod(head - i, entries.length)];
+                if (message.getSentAt() < beforeMillis) {
+                    result.add(message);
+                }
+            }
+            Collections.reverse(result);
+            lastAccess = System.nanoTime();
+            return result;
+        }
+
+        // Latest entries numbered after afterSequence and up to
+        // throughSequence, oldest first
+        synchronized List<ChatMessage> between(long afterSequence, long throughSequence, int limit) {
+            List<ChatMessage> result = new ArrayList<>(Math.min(limit, size));
+            for (int i = 1; i <= size && result.size() < limit; i++) {
+                ChatMessage message = entries[Math.floorMod(head - i, entries.length)];
+                if (message.getSentAt() <= afterSequence) break;
+                if (message.getSentAt() <= throughSequence) {
+                    result.add(message);
+                }
+            }
+            Collections.reverse(result);
+            lastAccess = System.nanoTime();
+            return result;
+        }
+
+        synchronized List<ChatMessage> at(long sentAt) {
+            List<ChatMessage> result = new ArrayList<>(1);
+            for (int i = 1; i <= size; i++) {
+                ChatMessage message = entries[Math.floorMod(head - i, entries.length)];
+                if (message.getSentAt() == sentAt) {
+                    result.add(message);
+                }
+            }
+            lastAccess = System.nanoTime();
+            return result;
+        }
+
+        // A ring that has already dropped entries cannot vouch for them
+        synchronized void markComplete() {
+            if (!wrapped) {
+                complete = true;
+            }
+        }
+
+        // Time of the oldest entry, Long.MAX_VALUE if there is none
+        synchronized long oldest() {
+            return size == 0 ? Long.MAX_VALUE : entries[Math.floorMod(head - size, entries.length)].getSentAt();
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+    }
+}
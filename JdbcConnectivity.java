@@ -1,95 +1,481 @@
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class JdbcConnectivity {
-    private static final String DB_URL = "jdbc:mysql://localhost:3306/chat_application";
-    private static final String DB_USER = "root";
-    private static final String DB_PASSWORD = "abc@123";
+    // Overridable with -Dchat.db.url=... etc., e.g. to run against an embedded database.
+    // useCursorFetch makes Connector/J honour setFetchSize() with a server-side
+    // cursor; without it streamConversation() would load every row first.
+    private static final String DB_URL = System.getProperty("chat.db.url",
+        "jdbc:mysql://localhost:3306/chat_application?useCursorFetch=true");
+    private static final String DB_USER = System.getProperty("chat.db.user", "root");
+    private static final String DB_PASSWORD = System.getProperty("chat.db.password", "abc@123");
     private static final String JDBC_DRIVER = "com.mysql.cj.jdbc.Driver";
 
+    // Pool settings
+    private static final int POOL_SIZE = Integer.getInteger("chat.db.poolSize", 10);
+    private static final long BORROW_TIMEOUT_MS = 5000;
+    private static final long VALIDATE_AFTER_IDLE_MS = 30_000;
+    private static final long HEALTH_CHECK_INTERVAL_SECONDS = 60;
+    private static final int STREAM_FETCH_SIZE = 500;
+
+    private static ConnectionPool pool;
+    private static ScheduledExecutorService healthChecker;
+
+    // Call latencies, from borrowing a connection to handing it back
+    private static final LatencyHistogram AUTHENTICATE_USER_TIMER = Metrics.dbTimer("authenticateUser");
+    private static final LatencyHistogram REGISTER_USER_TIMER = Metrics.dbTimer("registerUser");
+    private static final LatencyHistogram PERSIST_MESSAGE_TIMER = Metrics.dbTimer("persistMessage");
+    private static final LatencyHistogram FIND_USER_ID_TIMER = Metrics.dbTimer("findUserId");
+    private static final LatencyHistogram PERSIST_MESSAGES_TIMER = Metrics.dbTimer("persistMessages");
+    private static final LatencyHistogram GET_CONVERSATION_PAGE_TIMER = Metrics.dbTimer("getConversationPage");
+    private static final LatencyHistogram GET_ROOM_PAGE_TIMER = Metrics.dbTimer("getRoomPage");
+    private static final LatencyHistogram GET_ROOM_PAGE_BEFORE_TIMER = Metrics.dbTimer("getRoomPageBefore");
+    private static final LatencyHistogram GET_ROOM_PAGE_BETWEEN_TIMER = Metrics.dbTimer("getRoomPageBetween");
+    private static final LatencyHistogram GET_CONVERSATION_AROUND_TIMER = Metrics.dbTimer("getConversationAround");
+    private static final LatencyHistogram STREAM_CONVERSATION_TIMER = Metrics.dbTimer("streamConversation");
+    private static final LatencyHistogram UPDATE_USER_STATUS_TIMER = Metrics.dbTimer("updateUserStatus");
+    private static final LatencyHistogram UPDATE_USER_STATUSES_TIMER = Metrics.dbTimer("updateUserStatuses");
+    private static final LatencyHistogram MARK_ALL_OFFLINE_TIMER = Metrics.dbTimer("markAllOffline");
+
+    // Unpooled connection, for one-off tools
     public static Connection getConnection() throws SQLException {
         return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
     }
 
-    // User authentication
+    public static synchronized ConnectionPool getPool() {
+        if (pool == null) {
+            pool = new ConnectionPool(DB_URL, DB_USER, DB_PASSWORD, POOL_SIZE,
+                BORROW_TIMEOUT_MS, VALIDATE_AFTER_IDLE_MS);
+            healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "db-health-check");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ConnectionPool checked = pool;
+            healthChecker.scheduleWithFixedDelay(() -> {
+                int dropped = checked.healthCheck();
+                if (dropped > 0) {
+                    System.err.println("Dropped " + dropped + " dead database connections");
+                }
+            }, HEALTH_CHECK_INTERVAL_SECONDS, HEALTH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        return pool;
+    }
+
+    // Borrows a connection whose time out of the pool is recorded in timer
+    private static ConnectionPool.PooledConnection borrow(LatencyHistogram timer) throws SQLException {
+        return getPool().borrow(timer);
+    }
+
+    // Active/idle/wait-time figures for the admin view
+    public static synchronized String getPoolStats() {
+        return pool == null ? "pool not started" : pool.getStats();
+    }
+
+    public static synchronized void shutdown() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    // User authentication: checks password against the stored salted hash.
+    // Slow by design; see PasswordHasher.
     public static boolean authenticateUser(String username, String password) {
         String sql = "SELECT password_hash, salt FROM users WHERE username = ?";
-        
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            
-            stmt.setString(1, username);
-            ResultSet rs = stmt.executeQuery();
-            
-            if (rs.next()) {
-                String storedHash = rs.getString("password_hash");
-                String salt = rs.getString("salt");
-                // In real implementation, hash the input password with salt
-                // and compare with storedHash
-                return true; // Simplified for example
+        String storedHash = null;
+        String salt = null;
+
+        // The connection goes back to the pool before the hash is computed
+        try (ConnectionPool.PooledConnection conn = borrow(AUTHENTICATE_USER_TIMER)) {
+            try {
+                PreparedStatement stmt = conn.prepare(sql);
+                stmt.setString(1, username);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        storedHash = rs.getString("password_hash");
+                        salt = rs.getString("salt");
+                    }
+                }
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
             }
-            return false;
         } catch (SQLException e) {
             System.err.println("Authentication error: " + e.getMessage());
             return false;
         }
+        if (storedHash == null) {
+            return PasswordHasher.verifyNothing(password);
+        }
+        return PasswordHasher.verify(password, salt, storedHash);
+    }
+
+    // Creates an account, or resets the password of an existing one
+    public static boolean registerUser(String username, String password) {
+        String sql = "INSERT INTO users (username, password_hash, salt) VALUES (?, ?, ?) "
+            + "ON DUPLICATE KEY UPDATE password_hash = VALUES(password_hash), salt = VALUES(salt)";
+        String salt = PasswordHasher.newSalt();
+        String hash = PasswordHasher.hash(password, salt);
+
+        try (ConnectionPool.PooledConnection conn = borrow(REGISTER_USER_TIMER)) {
+            try {
+                PreparedStatement stmt = conn.prepare(sql);
+                stmt.setString(1, username);
+                stmt.setString(2, hash);
+                stmt.setString(3, salt);
+                return stmt.executeUpdate() > 0;
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error registering user: " + e.getMessage());
+            return false;
+        }
     }
 
     // Message persistence
     public static void persistMessage(int senderId, Integer receiverId, String message, String messageType) {
         String sql = "INSERT INTO messages (sender_id, receiver_id, message, message_type) VALUES (?, ?, ?, ?)";
         
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            
-            stmt.setInt(1, senderId);
-            if (receiverId == null) {
-                stmt.setNull(2, Types.INTEGER);
-            } else {
-                stmt.setInt(2, receiverId);
+        try (ConnectionPool.PooledConnection conn = borrow(PERSIST_MESSAGE_TIMER)) {
+            try {
+                PreparedStatement stmt = conn.prepare(sql, Statement.RETURN_GENERATED_KEYS);
+                stmt.setInt(1, senderId);
+                if (receiverId == null) {
+                    stmt.setNull(2, Types.INTEGER);
+                } else {
+                    stmt.setInt(2, receiverId);
+                }
+                stmt.setString(3, message);
+                stmt.setString(4, messageType);
+
+                int affectedRows = stmt.executeUpdate();
+                if (affectedRows == 0) {
+                    throw new SQLException("Message creation failed");
+                }
+
+                try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
+                    if (generatedKeys.next()) {
+                        generatedKeys.getInt(1);
+                    }
+                }
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
             }
-            stmt.setString(3, message);
-            stmt.setString(4, messageType);
-            
-            int affectedRows = stmt.executeUpdate();
-            if (affectedRows == 0) {
-                throw new SQLException("Message creation failed");
+        } catch (SQLException e) {
+            System.err.println("Error persisting message: " + e.getMessage());
+        }
+    }
+
+    // Returns the users.id for username, or -1 if there is none
+    public static int findUserId(String username) {
+        String sql = "SELECT id FROM users WHERE username = ?";
+
+        try (ConnectionPool.PooledConnection conn = borrow(FIND_USER_ID_TIMER)) {
+            try {
+                PreparedStatement stmt = conn.prepare(sql);
+                stmt.setString(1, username);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getInt(1) : -1;
+                }
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
             }
-            
-            try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    generatedKeys.getInt(1);
+        } catch (SQLException e) {
+            System.err.println("Error looking up user: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    // Batched message persistence for the write-behind pipeline. Sender and
+    // recipient are resolved by username inside the INSERT, so no lookups are
+    // needed; messages from names without a users row are skipped.
+    // Returns the number of rows written, or -1 if the batch failed.
+    public static int persistMessages(List<ChatMessage> batch) {
+        String sql = "INSERT INTO messages (sender_id, receiver_id, room, message, message_type, is_delivered, sent_at, room_seq) " +
+                     "SELECT s.id, r.id, ?, ?, ?, ?, ?, ? FROM users s " +
+                     "LEFT JOIN users r ON r.username = ? " +
+                     "WHERE s.username = ?";
+
+        try (ConnectionPool.PooledConnection conn = borrow(PERSIST_MESSAGES_TIMER)) {
+            Connection connection = conn.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                PreparedStatement stmt = conn.prepare(sql);
+                for (ChatMessage message : batch) {
+                    stmt.setString(1, message.getRoom());
+                    stmt.setString(2, message.getText());
+                    stmt.setString(3, message.getType());
+                    stmt.setBoolean(4, message.isDelivered());
+                    stmt.setTimestamp(5, new Timestamp(message.getSentAt()));
+                    if (message.getRoom() != null) {
+                        stmt.setLong(6, message.getSentAt());
+                    } else {
+                        stmt.setNull(6, Types.BIGINT);
+                    }
+                    stmt.setString(7, message.getRecipient());
+                    stmt.setString(8, message.getSender());
+                    stmt.addBatch();
+                }
+
+                int written = 0;
+                for (int count : stmt.executeBatch()) {
+                    if (count > 0) {
+                        written += count;
+                    } else if (count == Statement.SUCCESS_NO_INFO) {
+                        written++;
+                    }
+                }
+                connection.commit();
+                return written;
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                try {
+                    connection.rollback();
+                } catch (SQLException ignored) {
+                }
+                throw e;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    conn.markBroken();
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Error persisting message: " + e.getMessage());
+            System.err.println("Error persisting message batch of " + batch.size() + ": " + e.getMessage());
+            return -1;
         }
     }
 
-    // Get message history
+    // Get message history. Streams the whole conversation; prefer
+    // getConversationPage() for anything user-facing.
     public static List<String> getMessageHistory(int userId1, int userId2) {
         List<String> messages = new ArrayList<>();
-        String sql = "SELECT u.username, m.message, m.sent_at " +
-                     "FROM messages m JOIN users u ON m.sender_id = u.id " +
-                     "WHERE (m.sender_id = ? AND m.receiver_id = ?) OR " +
-                     "(m.sender_id = ? AND m.receiver_id = ?) " +
-                     "ORDER BY m.sent_at ASC";
-        
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            
-            stmt.setInt(1, userId1);
-            stmt.setInt(2, userId2);
-            stmt.setInt(3, userId2);
-            stmt.setInt(4, userId1);
-            
-            ResultSet rs = stmt.executeQuery();
-            while (rs.next()) {
-                messages.add(String.format("[%s] %s: %s",
-                    rs.getTimestamp("sent_at"),
-                    rs.getString("username"),
-                    rs.getString("message")));
+        streamConversation(userId1, userId2, 0, message ->
+            messages.add(String.format("[%s] %s: %s",
+                new Timestamp(message.getSentAt()),
+                message.getSender(),
+                message.getText())));
+        return messages;
+    }
+
+    // Keyset pagination. A page holds up to limit messages strictly before
+    // (or after) cursorId, always returned oldest first; pass NO_CURSOR to
+    // start from the newest (or oldest) message. Use the first/last id of a
+    // page as the cursor for the next one.
+    public static final long NO_CURSOR = 0;
+
+    private static final String MESSAGE_COLUMNS =
+        "m.id, s.username AS sender, r.username AS receiver, m.room, m.message, " +
+        "m.message_type, m.sent_at, m.room_seq, m.is_delivered ";
+
+    // Each half of the UNION is a range scan on idx_messages_conversation
+    // (sender_id, receiver_id, id); the OR form cannot use an index at all.
+    private static String conversationPageSql(boolean before) {
+        String cmp = before ? "<" : ">";
+        String order = before ? "DESC" : "ASC";
+        String half = "(SELECT id FROM messages WHERE sender_id = ? AND receiver_id = ? AND id " + cmp + " ? " +
+                      "ORDER BY id " + order + " LIMIT ?)";
+        return "SELECT " + MESSAGE_COLUMNS +
+               "FROM (" + half + " UNION ALL " + half + ") page " +
+               "JOIN messages m ON m.id = page.id " +
+               "JOIN users s ON s.id = m.sender_id " +
+               "LEFT JOIN users r ON r.id = m.receiver_id " +
+               "ORDER BY m.id " + order + " LIMIT ?";
+    }
+
+    private static final String CONVERSATION_BEFORE_SQL = conversationPageSql(true);
+    private static final String CONVERSATION_AFTER_SQL = conversationPageSql(false);
+
+    public static List<ChatMessage> getConversationPage(int userId1, int userId2, long cursorId,
+                                                        boolean before, int limit) {
+        List<ChatMessage> page = new ArrayList<>(limit);
+        long cursor = before && cursorId == NO_CURSOR ? Long.MAX_VALUE : cursorId;
+
+        try (ConnectionPool.PooledConnection conn = borrow(GET_CONVERSATION_PAGE_TIMER)) {
+            try {
+                PreparedStatement stmt = conn.prepare(before ? CONVERSATION_BEFORE_SQL : CONVERSATION_AFTER_SQL);
+                stmt.setInt(1, userId1);
+                stmt.setInt(2, userId2);
+                stmt.setLong(3, cursor);
+                stmt.setInt(4, limit);
+                stmt.setInt(5, userId2);
+                stmt.setInt(6, userId1);
+                stmt.setLong(7, cursor);
+                stmt.setInt(8, limit);
+                stmt.setInt(9, limit);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        page.add(readMessage(rs));
+                    }
+                }
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error retrieving messages: " + e.getMessage());
+        }
+        if (before) {
+            Collections.reverse(page);
+        }
+        return page;
+    }
+
+    // Same paging for a room's public messages, served by idx_messages_room (room, id)
+    public static List<ChatMessage> getRoomPage(String room, long cursorId, boolean before, int limit) {
+        List<ChatMessage> page = new ArrayList<>(limit);
+        long cursor = before && cursorId == NO_CURSOR ? Long.MAX_VALUE : cursorId;
+        String sql = "SELECT " + MESSAGE_COLUMNS +
+                     "FROM messages m JOIN users s ON s.id = m.sender_id " +
+                     "LEFT JOIN users r ON r.id = m.receiver_id " +
+                     "WHERE m.room = ? AND m.id " + (before ? "<" : ">") + " ? " +
+                     "ORDER BY m.id " + (before ? "DESC" : "ASC") + " LIMIT ?";
+
+        try (ConnectionPool.PooledConnection conn = borrow(GET_ROOM_PAGE_TIMER)) {
+            try {
+                PreparedStatement stmt = conn.prepare(sql);
+                stmt.setString(1, room);
+                stmt.setLong(2, cursor);
+                stmt.setInt(3, limit);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        page.add(readMessage(rs));
+                    }
+                }
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error retrieving messages: " + e.getMessage());
+        }
+        if (before) {
+            Collections.reverse(page);
+        }
+        return page;
+    }
+
+    // Latest public messages of a room numbered before beforeSequence, oldest
+    // first. Room sequence numbers are exact and unique, unlike sent_at, which
+    // only keeps seconds, so no line is skipped or repeated between pages.
+    // Walks idx_messages_room_seq (room, room_seq) backwards from the cursor.
+    public static List<ChatMessage> getRoomPageBefore(String room, long beforeSequence, int limit) {
+        List<ChatMessage> page = new ArrayList<>(limit);
+        String sql = "SELECT " + MESSAGE_COLUMNS +
+                     "FROM messages m JOIN users s ON s.id = m.sender_id " +
+                     "LEFT JOIN users r ON r.id = m.receiver_id " +
+                     "WHERE m.room = ? AND m.room_seq < ? " +
+                     "ORDER BY m.room_seq DESC LIMIT ?";
+
+        try (ConnectionPool.PooledConnection conn = borrow(GET_ROOM_PAGE_BEFORE_TIMER)) {
+            try {
+                PreparedStatement stmt = conn.prepare(sql);
+                stmt.setString(1, room);
+                stmt.setLong(2, beforeSequence);
+                stmt.setInt(3, limit);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        page.add(readMessage(rs));
+                    }
+                }
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error retrieving messages: " + e.getMessage());
+        }
+        Collections.reverse(page);
+        return page;
+    }
+
+    // Latest public messages of a room numbered after afterSequence and up to
+    // throughSequence, oldest first; what a reconnecting client missed.
+    // A range scan on idx_messages_room_seq (room, room_seq).
+    public static List<ChatMessage> getRoomPageBetween(String room, long afterSequence, long throughSequence,
+                                                       int limit) {
+        List<ChatMessage> page = new ArrayList<>(limit);
+        String sql = "SELECT " + MESSAGE_COLUMNS +
+                     "FROM messages m JOIN users s ON s.id = m.sender_id " +
+                     "LEFT JOIN users r ON r.id = m.receiver_id " +
+                     "WHERE m.room = ? AND m.room_seq > ? AND m.room_seq <= ? " +
+                     "ORDER BY m.room_seq DESC LIMIT ?";
+
+        try (ConnectionPool.PooledConnection conn = borrow(GET_ROOM_PAGE_BETWEEN_TIMER)) {
+            try {
+                PreparedStatement stmt = conn.prepare(sql);
+                stmt.setString(1, room);
+                stmt.setLong(2, afterSequence);
+                stmt.setLong(3, throughSequence);
+                stmt.setInt(4, limit);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        page.add(readMessage(rs));
+                    }
+                }
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error retrieving messages: " + e.getMessage());
+        }
+        Collections.reverse(page);
+        return page;
+    }
+
+    // Private messages between two users stored with a sent_at within a
+    // second of sentAtMillis, which is as close as sent_at can tell; used to
+    // resolve search hits. A short range scan on idx_messages_timestamp.
+    public static List<ChatMessage> getConversationAround(String user1, String user2, long sentAtMillis) {
+        List<ChatMessage> messages = new ArrayList<>();
+        String sql = "SELECT " + MESSAGE_COLUMNS +
+                     "FROM messages m JOIN users s ON s.id = m.sender_id " +
+                     "JOIN users r ON r.id = m.receiver_id " +
+                     "WHERE m.sent_at >= ? AND m.sent_at <= ? AND m.message_type = 'PRIVATE' " +
+                     "AND ((s.username = ? AND r.username = ?) OR (s.username = ? AND r.username = ?)) " +
+                     "ORDER BY m.id";
+
+        try (ConnectionPool.PooledConnection conn = borrow(GET_CONVERSATION_AROUND_TIMER)) {
+            try {
+                PreparedStatement stmt = conn.prepare(sql);
+                stmt.setTimestamp(1, new Timestamp(sentAtMillis - 1000));
+                stmt.setTimestamp(2, new Timestamp(sentAtMillis + 1000));
+                stmt.setString(3, user1);
+                stmt.setString(4, user2);
+                stmt.setString(5, user2);
+                stmt.setString(6, user1);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        messages.add(readMessage(rs));
+                    }
+                }
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
             }
         } catch (SQLException e) {
             System.err.println("Error retrieving messages: " + e.getMessage());
@@ -97,18 +483,147 @@ public class JdbcConnectivity {
         return messages;
     }
 
+    // Streams a conversation oldest first, starting after afterId, without
+    // holding it in memory: rows arrive STREAM_FETCH_SIZE at a time through
+    // the cursor that useCursorFetch=true in DB_URL asks MySQL for. Returns
+    // the row count.
+    public static int streamConversation(int userId1, int userId2, long afterId, Consumer<ChatMessage> sink) {
+        String half = "(SELECT id FROM messages WHERE sender_id = ? AND receiver_id = ? AND id > ?)";
+        String sql = "SELECT " + MESSAGE_COLUMNS +
+                     "FROM (" + half + " UNION ALL " + half + ") page " +
+                     "JOIN messages m ON m.id = page.id " +
+                     "JOIN users s ON s.id = m.sender_id " +
+                     "LEFT JOIN users r ON r.id = m.receiver_id " +
+                     "ORDER BY m.id ASC";
+        int count = 0;
+
+        try (ConnectionPool.PooledConnection conn = borrow(STREAM_CONVERSATION_TIMER)) {
+            try {
+                PreparedStatement stmt = conn.prepare(sql);
+                stmt.setFetchSize(STREAM_FETCH_SIZE);
+                stmt.setInt(1, userId1);
+                stmt.setInt(2, userId2);
+                stmt.setLong(3, afterId);
+                stmt.setInt(4, userId2);
+                stmt.setInt(5, userId1);
+                stmt.setLong(6, afterId);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        sink.accept(readMessage(rs));
+                        count++;
+                    }
+                }
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error retrieving messages: " + e.getMessage());
+        }
+        return count;
+    }
+
+    private static ChatMessage readMessage(ResultSet rs) throws SQLException {
+        Timestamp sentAt = rs.getTimestamp("sent_at");
+        // sent_at only keeps seconds; room messages have the exact time in room_seq
+        long sequence = rs.getLong("room_seq");
+        if (rs.wasNull()) {
+            sequence = sentAt == null ? 0 : sentAt.getTime();
+        }
+        return new ChatMessage(
+            rs.getLong("id"),
+            rs.getString("sender"),
+            rs.getString("receiver"),
+            rs.getString("room"),
+            rs.getString("message"),
+            rs.getString("message_type"),
+            sequence,
+            rs.getBoolean("is_delivered"));
+    }
+
     // Update user status
     public static void updateUserStatus(int userId, boolean isOnline) {
         String sql = "UPDATE users SET is_online = ?, last_login = CURRENT_TIMESTAMP WHERE id = ?";
         
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            
-            stmt.setBoolean(1, isOnline);
-            stmt.setInt(2, userId);
-            stmt.executeUpdate();
+        try (ConnectionPool.PooledConnection conn = borrow(UPDATE_USER_STATUS_TIMER)) {
+            try {
+                PreparedStatement stmt = conn.prepare(sql);
+                stmt.setBoolean(1, isOnline);
+                stmt.setInt(2, userId);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
+            }
         } catch (SQLException e) {
             System.err.println("Error updating user status: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    // Writes the latest online state of many users in one transaction; users
+    // without a row are skipped. Returns the number of rows updated, or -1.
+    public static int updateUserStatuses(Map<String, StatusPersister.Change> changes) {
+        String sql = "UPDATE users SET is_online = ?, last_login = COALESCE(?, last_login) WHERE username = ?";
+
+        try (ConnectionPool.PooledConnection conn = borrow(UPDATE_USER_STATUSES_TIMER)) {
+            Connection connection = conn.getConnection();
+            try {
+                connection.setAutoCommit(false);
+                PreparedStatement stmt = conn.prepare(sql);
+                for (Map.Entry<String, StatusPersister.Change> entry : changes.entrySet()) {
+                    StatusPersister.Change change = entry.getValue();
+                    stmt.setBoolean(1, change.online);
+                    if (change.lastLogin > 0) {
+                        stmt.setTimestamp(2, new Timestamp(change.lastLogin));
+                    } else {
+                        stmt.setNull(2, Types.TIMESTAMP);
+                    }
+                    stmt.setString(3, entry.getKey());
+                    stmt.addBatch();
+                }
+
+                int updated = 0;
+                for (int count : stmt.executeBatch()) {
+                    if (count > 0) {
+                        updated += count;
+                    }
+                }
+                connection.commit();
+                return updated;
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                try {
+                    connection.rollback();
+                } catch (SQLException ignored) {
+                }
+                throw e;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    conn.markBroken();
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error updating " + changes.size() + " user statuses: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    // Clears is_online for everyone, e.g. after a crash left users marked online
+    public static void markAllOffline() {
+        String sql = "UPDATE users SET is_online = FALSE WHERE is_online = TRUE";
+
+        try (ConnectionPool.PooledConnection conn = borrow(MARK_ALL_OFFLINE_TIMER)) {
+            try {
+                conn.prepare(sql).executeUpdate();
+            } catch (SQLException e) {
+                conn.checkBroken(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error resetting user statuses: " + e.getMessage());
+        }
+    }
+}
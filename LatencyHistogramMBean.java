@@ -0,0 +1,18 @@
+/**
+ * JMX view of a LatencyHistogram; registered under chat:type=Latency.
+ */
+public interface LatencyHistogramMBean {
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP90Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
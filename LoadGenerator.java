@@ -0,0 +1,340 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator: opens many client connections to a running
+ * server (ChatServer or ServerGUI) over loopback and measures end-to-end
+ * delivery.
+ *
+ *   java LoadGenerator [--clients=N] [--rooms=R] [--distribution=uniform|zipf]
+ *                      [--rate=M] [--duration=S] [--warmup=S] [--binary]
+ *                      [--host=H] [--port=P[,P...]]
+ *
+ * Each client logs in the way a real one does (username line for text
+ * clients, MAGIC + HELLO for --binary), joins one of R rooms picked by the
+ * distribution, sends M messages per second to it and quits with /quit.
+ * Every message carries the sender's scheduled send time (System.nanoTime,
+ * valid because all clients live in this one JVM); receivers subtract it
+ * from their arrival time. Measuring from the scheduled rather than the
+ * actual send time means a generator or server that falls behind shows up
+ * as latency instead of silently sending less.
+ *
+ * Defaults: 100 clients, 10 rooms, uniform, 1 msg/s each, 30 s after 5 s
+ * of warm-up. With several ports, e.g. the nodes of a cluster, clients are
+ * spread over them round-robin, so most messages cross between nodes.
+ */
+public class LoadGenerator {
+    // Marks generated lines so they can be told apart from joins, replays etc.
+    private static final String MARKER = "LG|";
+    private static final long DRAIN_MILLIS = 2000;
+    // Logins in flight at once; more would overrun the server's accept backlog
+    private static final int CONNECT_THREADS = 32;
+
+    private static String host = "127.0.0.1";
+    private static int[] ports = {ChatServer.PORT};
+    private static int clientCount = 100;
+    private static int roomCount = 10;
+    private static boolean zipf = false;
+    private static double rate = 1;
+    private static long durationMillis = 30_000;
+    private static long warmupMillis = 5_000;
+    private static boolean binary = false;
+
+    private static final LatencyHistogram latency = new LatencyHistogram();
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong expected = new AtomicLong();
+    private static final AtomicLong delivered = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    // Only messages sent after the warm-up count towards the figures above
+    private static volatile long measureFromNanos;
+    private static volatile long measureUntilNanos;
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args) {
+            if (arg.startsWith("--clients=")) {
+                clientCount = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--rooms=")) {
+                roomCount = Integer.parseInt(arg.substring(8));
+            } else if (arg.startsWith("--distribution=")) {
+                zipf = arg.substring(15).equalsIgnoreCase("zipf");
+            } else if (arg.startsWith("--rate=")) {
+                rate = Double.parseDouble(arg.substring(7));
+            } else if (arg.startsWith("--duration=")) {
+                durationMillis = Long.parseLong(arg.substring(11)) * 1000;
+            } else if (arg.startsWith("--warmup=")) {
+                warmupMillis = Long.parseLong(arg.substring(9)) * 1000;
+            } else if (arg.equals("--binary")) {
+                binary = true;
+            } else if (arg.startsWith("--host=")) {
+                host = arg.substring(7);
+            } else if (arg.startsWith("--port=")) {
+                String[] list = arg.substring(7).split(",");
+                ports = new int[list.length];
+                for (int i = 0; i < list.length; i++) {
+                    ports[i] = Integer.parseInt(list[i].trim());
+                }
+            } else {
+                System.err.println("Unknown option " + arg);
+                System.exit(2);
+            }
+        }
+
+        // Rooms are assigned up front so every sender knows its audience
+        int[] roomOf = assignRooms(new Random(42));
+        int[] roomSizes = new int[roomCount];
+        for (int room : roomOf) {
+            roomSizes[room]++;
+        }
+        System.out.printf("%d %s clients, %d rooms (%s, largest %d), %.2f msg/s each, %d s + %d s warm-up%n",
+            clientCount, binary ? "binary" : "text", roomCount, zipf ? "zipf" : "uniform", max(roomSizes),
+            rate, durationMillis / 1000, warmupMillis / 1000);
+
+        List<LoadClient> clients = new ArrayList<>();
+        List<Future<?>> logins = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        ExecutorService connector = Executors.newFixedThreadPool(CONNECT_THREADS);
+        for (int i = 0; i < clientCount; i++) {
+            LoadClient client = new LoadClient(i, ports[i % ports.length], "room" + roomOf[i],
+                roomSizes[roomOf[i]] - 1);
+            clients.add(client);
+            logins.add(connector.submit(() -> {
+                client.connect();
+                return null;
+            }));
+        }
+        connector.shutdown();
+        for (Future<?> login : logins) {
+            try {
+                login.get();
+            } catch (ExecutionException e) {
+                System.err.println("Login failed: " + e.getCause().getMessage());
+                System.exit(1);
+            }
+        }
+        System.out.printf("Connected and logged in %d clients in %d ms%n", clientCount,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart));
+
+        long start = System.nanoTime();
+        measureFromNanos = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        measureUntilNanos = measureFromNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        CountDownLatch done = new CountDownLatch(clients.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (LoadClient client : clients) {
+                executor.execute(client::readLoop);
+                executor.execute(() -> {
+                    client.sendLoop(start, measureUntilNanos);
+                    done.countDown();
+                });
+            }
+            done.await();
+            // Let messages still in flight arrive before counting
+            Thread.sleep(DRAIN_MILLIS);
+            report();
+            for (LoadClient client : clients) {
+                client.quit();
+            }
+        }
+    }
+
+    private static int[] assignRooms(Random random) {
+        double[] cumulative = new double[roomCount];
+        double total = 0;
+        for (int i = 0; i < roomCount; i++) {
+            // Zipf with exponent 1: room k is k times less popular than room 1
+            total += zipf ? 1.0 / (i + 1) : 1.0;
+            cumulative[i] = total;
+        }
+        int[] roomOf = new int[clientCount];
+        for (int client = 0; client < clientCount; client++) {
+            double pick = random.nextDouble() * total;
+            int room = 0;
+            while (room < roomCount - 1 && cumulative[room] < pick) {
+                room++;
+            }
+            roomOf[client] = room;
+        }
+        return roomOf;
+    }
+
+    private static int max(int[] values) {
+        int max = 0;
+        for (int value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    private static void report() {
+        double seconds = durationMillis / 1000.0;
+        long lost = expected.get() - delivered.get();
+        System.out.printf("Sent %d messages (%.0f/s), delivered %d of %d expected (%.0f/s), %d lost%n",
+            sent.get(), sent.get() / seconds, delivered.get(), expected.get(), delivered.get() / seconds, lost);
+        if (failed.get() > 0) {
+            System.out.println(failed.get() + " clients were disconnected before the end");
+        }
+        System.out.println("Latency: " + latency.describe());
+    }
+
+    // Called by readers for every generated line; returns false for other lines
+    private static boolean received(String text, long arrivalNanos) {
+        int at = text.indexOf(MARKER);
+        if (at < 0) {
+            return false;
+        }
+        int end = text.indexOf('|', at + MARKER.length());
+        if (end < 0) {
+            return false;
+        }
+        long scheduled = Long.parseLong(text.substring(at + MARKER.length(), end));
+        if (scheduled >= measureFromNanos && scheduled < measureUntilNanos) {
+            latency.record(arrivalNanos - scheduled);
+            delivered.incrementAndGet();
+        }
+        return true;
+    }
+
+    private static final class LoadClient {
+        private final String name;
+        private final int port;
+        private final String room;
+        private final int audience;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private BufferedReader reader;
+
+        LoadClient(int id, int port, String room, int audience) {
+            this.name = "lg" + id;
+            this.port = port;
+            this.room = room;
+            this.audience = audience;
+        }
+
+        void connect() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+            reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            // Always a plain line, whatever protocol follows
+            String prompt = reader.readLine();
+            if (prompt == null) {
+                throw new EOFException("Server closed the connection");
+            }
+            if (binary) {
+                // Nothing is buffered past the prompt yet: the server waits for us
+                in = new DataInputStream(in);
+                out.write(FrameCodec.MAGIC);
+                out.write(FrameCodec.encode(FrameCodec.HELLO, 0, name, "", false));
+                send("/join " + room);
+                awaitLine("You are now talking in #" + room);
+            } else {
+                send(name);
+                send("/join " + room);
+                awaitLine("You are now talking in #" + room);
+            }
+        }
+
+        // Reads until a line containing text arrives, during the handshake
+        private void awaitLine(String text) throws IOException {
+            String line;
+            while ((line = nextLine()) != null) {
+                if (line.contains(text)) {
+                    return;
+                }
+                if (line.startsWith("Invalid") || line.contains("already in use")) {
+                    throw new IOException(name + ": " + line);
+                }
+            }
+            throw new EOFException(name + ": server closed the connection");
+        }
+
+        // Next text line, or the text of the next TEXT frame for binary clients
+        private String nextLine() throws IOException {
+            if (!binary) {
+                return reader.readLine();
+            }
+            FrameCodec.Frame frame;
+            while ((frame = FrameCodec.read((DataInputStream) in)) != null) {
+                if (frame.type == FrameCodec.TEXT || frame.type == FrameCodec.ERROR) {
+                    return frame.text;
+                }
+                if (frame.type == FrameCodec.PING) {
+                    synchronized (out) {
+                        out.write(FrameCodec.encode(FrameCodec.PONG, frame.messageId, "", "", false));
+                        out.flush();
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void send(String line) throws IOException {
+            synchronized (out) {
+                if (binary) {
+                    out.write(line.startsWith("/")
+                        ? FrameCodec.encode(FrameCodec.COMMAND, 0, "", line, false)
+                        : FrameCodec.encode(FrameCodec.CHAT, 0, "", line, false));
+                } else {
+                    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            }
+        }
+
+        void readLoop() {
+            try {
+                String line;
+                while ((line = nextLine()) != null) {
+                    received(line, System.nanoTime());
+                }
+            } catch (IOException e) {
+                // Closed by quit() or by the server
+            }
+        }
+
+        // Sends on a fixed schedule until untilNanos; each client starts at a
+        // random offset so the sends do not all line up
+        void sendLoop(long startNanos, long untilNanos) {
+            long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            long next = startNanos + (long) (Math.random() * interval);
+            try {
+                while (next < untilNanos) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    send(MARKER + next + "|" + name + " says hello to #" + room);
+                    if (next >= measureFromNanos) {
+                        sent.incrementAndGet();
+                        expected.addAndGet(audience);
+                    }
+                    next += interval;
+                }
+            } catch (IOException e) {
+                failed.incrementAndGet();
+            }
+        }
+
+        void quit() {
+            try {
+                send("/quit");
+                socket.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import java.util.List;
+
+/**
+ * Fixed-size ring of recent log lines. Writers append without ever
+ * blocking on a reader; readers pull everything since the last sequence
+ * number they saw, in one batch. When a reader falls more than a full ring
+ * behind, the oldest lines are skipped and reported as such instead of
+ * being buffered without bound.
+ */
+public class LogBuffer {
+    private final String[] lines;
+    // Sequence number of the next line to be appended
+    private long next = 0;
+
+    public LogBuffer(int capacity) {
+        this.lines = new String[capacity];
+    }
+
+    public synchronized void append(String line) {
+        lines[(int) (next % lines.length)] = line;
+        next++;
+    }
+
+    // Adds lines appended at or after sequence from to into; returns the
+    // sequence to pass next time. Lines already overwritten are skipped and
+    // announced with a single placeholder line.
+    public synchronized long drainSince(long from, List<String> into) {
+        long oldest = Math.max(0, next - lines.length);
+        if (from < oldest) {
+            into.add("... " + (oldest - from) + " log lines skipped ...");
+            from = oldest;
+        }
+        for (long seq = from; seq < next; seq++) {
+            into.add(lines[(int) (seq % lines.length)]);
+        }
+        return next;
+    }
+
+    public synchronized long getNextSequence() {
+        return next;
+    }
+}
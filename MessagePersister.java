@@ -0,0 +1,177 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind persistence stage. The send path drops messages into a
+ * bounded ring buffer and returns; a single writer thread flushes them
+ * with JDBC batch inserts once a batch fills up or the flush interval
+ * passes, whichever comes first.
+ *
+ * submit() never blocks, since it runs on the sender's thread, which may
+ * be an NIO event loop. Once the buffer is three quarters full the server
+ * pauses reading from senders (see isBackedUp()), so TCP slows them down
+ * while the database catches up; if it fills up anyway, messages are
+ * rejected and counted rather than growing the buffer without bound.
+ *
+ * The messages table only takes 1 to 2000 bytes of text (database.sql),
+ * so submit() drops empty messages and cuts long ones down to fit. A
+ * batch that fails anyway is split in halves and retried until the rows
+ * that fail on their own are found; only those are dropped and counted.
+ */
+public class MessagePersister {
+    // The message_length check in database.sql; MySQL's LENGTH() counts bytes
+    static final int MAX_MESSAGE_BYTES = 2000;
+
+    private final ArrayBlockingQueue<ChatMessage> ring;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final int highWater;
+    private final Thread writer;
+    private volatile boolean running = false;
+
+    private final LongAdder persisted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public MessagePersister(int capacity, int batchSize, long flushIntervalMillis) {
+        this.ring = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.highWater = capacity * 3 / 4;
+        this.writer = new Thread(this::writeLoop, "message-persister");
+    }
+
+    public void start() {
+        running = true;
+        writer.start();
+    }
+
+    // Returns false if the message was rejected because the buffer is full.
+    // Never blocks.
+    public boolean submit(ChatMessage message) {
+        if (message.getText().isEmpty()) {
+            // Nothing the table would take; not a backlog problem
+            dropped.increment();
+            return true;
+        }
+        if (!running || !ring.offer(fit(message))) {
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // True while the database is falling behind; senders should be slowed down
+    public boolean isBackedUp() {
+        return ring.size() >= highWater;
+    }
+
+    // Stops accepting messages and waits for everything buffered to be written
+    public void close(long timeoutMillis) {
+        running = false;
+        try {
+            writer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!ring.isEmpty()) {
+            System.err.println("Message persister stopped with " + ring.size() + " messages unwritten");
+        }
+    }
+
+    public int getBacklog() {
+        return ring.size();
+    }
+
+    public long getPersistedCount() {
+        return persisted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getFailedBatchCount() {
+        return failedBatches.sum();
+    }
+
+    // Empty messages, and rows the database refused even on their own
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    // message, or a copy cut down to the longest prefix that fits
+    // MAX_MESSAGE_BYTES of UTF-8 without splitting a character
+    static ChatMessage fit(ChatMessage message) {
+        String text = message.getText();
+        if (text.length() * 3 <= MAX_MESSAGE_BYTES
+                || text.getBytes(StandardCharsets.UTF_8).length <= MAX_MESSAGE_BYTES) {
+            return message;
+        }
+        CharBuffer in = CharBuffer.wrap(text);
+        StandardCharsets.UTF_8.newEncoder().encode(in, ByteBuffer.allocate(MAX_MESSAGE_BYTES), true);
+        return new ChatMessage(message.getId(), message.getSender(), message.getRecipient(), message.getRoom(),
+            text.substring(0, in.position()), message.getType(), message.getSentAt(), message.isDelivered());
+    }
+
+    private void writeLoop() {
+        List<ChatMessage> batch = new ArrayList<>(batchSize);
+        while (running || !ring.isEmpty()) {
+            try {
+                ChatMessage first = ring.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                // Keep filling until the batch is full or the interval is up
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                while (batch.size() < batchSize) {
+                    ring.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0 || !running) break;
+                    ChatMessage next = ring.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+
+            if (!batch.isEmpty()) {
+                int written = JdbcConnectivity.persistMessages(batch);
+                if (written < 0) {
+                    failedBatches.increment();
+                    split(batch);
+                } else {
+                    persisted.add(written);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    // Retries the halves of a failed write, bisecting until the rows that
+    // fail on their own are found; one bad row costs about 2 log2(n) tries
+    private void split(List<ChatMessage> failed) {
+        if (failed.size() == 1) {
+            System.err.println("Dropping message from " + failed.get(0).getSender() + " the database refused");
+            dropped.increment();
+            return;
+        }
+        for (List<ChatMessage> half : List.of(failed.subList(0, failed.size() / 2),
+                failed.subList(failed.size() / 2, failed.size()))) {
+            int written = JdbcConnectivity.persistMessages(half);
+            if (written < 0) {
+                split(half);
+            } else {
+                persisted.add(written);
+            }
+        }
+    }
+}
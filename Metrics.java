@@ -0,0 +1,210 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Server-wide counters and latency histograms. The hot paths only add to
+ * LongAdders and record into LatencyHistograms, which neither allocates nor
+ * locks; gauges such as queue depths are computed when someone asks.
+ *
+ * Everything is published three ways: as MBeans (chat:type=Metrics and one
+ * chat:type=Latency bean per histogram), through /stats on the server
+ * console, and as a periodic dump to the server log. Chat clients cannot
+ * see them: they include database, cluster and search internals.
+ */
+public final class Metrics implements MetricsMBean {
+    static final LongAdder connectionsAccepted = new LongAdder();
+    static final LongAdder messagesIn = new LongAdder();
+    static final LongAdder messagesOut = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder broadcasts = new LongAdder();
+    static final LongAdder broadcastRecipients = new LongAdder();
+    // Inbound messages over a FloodControl limit, by what was done about them
+    static final LongAdder floodDelayed = new LongAdder();
+    static final LongAdder floodDropped = new LongAdder();
+    static final LongAdder floodDisconnects = new LongAdder();
+
+    // Time to queue one broadcast to every recipient
+    static final LatencyHistogram fanout = new LatencyHistogram();
+    // From reading a client's message to handing it to the last recipient's socket
+    static final LatencyHistogram delivery = new LatencyHistogram();
+    // One per JdbcConnectivity call, from borrowing a connection to returning it
+    private static final Map<String, LatencyHistogram> dbTimers = new ConcurrentSkipListMap<>();
+
+    private static final Metrics instance = new Metrics();
+    private static volatile Collection<? extends ChatSession> clients = Collections.emptySet();
+    private static final List<ObjectName> registered = new ArrayList<>();
+
+    private Metrics() {
+    }
+
+    // Called once per operation, when JdbcConnectivity is loaded
+    static synchronized LatencyHistogram dbTimer(String operation) {
+        LatencyHistogram timer = dbTimers.get(operation);
+        if (timer == null) {
+            timer = new LatencyHistogram();
+            dbTimers.put(operation, timer);
+            if (!registered.isEmpty()) {
+                try {
+                    register(ManagementFactory.getPlatformMBeanServer(), "chat:type=Latency,name=db." + operation, timer);
+                } catch (JMException e) {
+                    ChatServer.log("Could not register metrics MBean: " + e.getMessage());
+                }
+            }
+        }
+        return timer;
+    }
+
+    // Publishes the MBeans; clients is read for the connection and queue gauges
+    static synchronized void register(Collection<? extends ChatSession> sessions) {
+        clients = sessions;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, "chat:type=Metrics", instance);
+            register(server, "chat:type=Latency,name=fanout", fanout);
+            register(server, "chat:type=Latency,name=delivery", delivery);
+            for (Map.Entry<String, LatencyHistogram> entry : dbTimers.entrySet()) {
+                register(server, "chat:type=Latency,name=db." + entry.getKey(), entry.getValue());
+            }
+        } catch (JMException e) {
+            ChatServer.log("Could not register metrics MBeans: " + e.getMessage());
+        }
+    }
+
+    private static void register(MBeanServer server, String name, Object bean) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        if (!server.isRegistered(objectName)) {
+            server.registerMBean(bean, objectName);
+            registered.add(objectName);
+        }
+    }
+
+    static synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // Already gone
+            }
+        }
+        registered.clear();
+        clients = Collections.emptySet();
+    }
+
+    // Human-readable dump, one line per group
+    static List<String> snapshot() {
+        List<String> lines = new ArrayList<>();
+        lines.add("clients=" + instance.getConnectedClients() + " accepted=" + connectionsAccepted.sum()
+            + " in=" + messagesIn.sum() + " out=" + messagesOut.sum()
+            + " bytesIn=" + bytesIn.sum() + " bytesOut=" + bytesOut.sum()
+            + " queued=" + instance.getQueuedMessages() + " maxQueue=" + instance.getMaxQueueDepth());
+        lines.add("broadcasts=" + broadcasts.sum() + String.format(" fanout=%.1f", instance.getMeanFanout())
+            + " time: " + fanout.describe());
+        lines.add("delivery: " + delivery.describe());
+        lines.add("flood delayed=" + floodDelayed.sum() + " dropped=" + floodDropped.sum()
+            + " disconnects=" + floodDisconnects.sum());
+        Cluster cluster = ChatServer.cluster;
+        if (cluster != null) {
+            lines.add("cluster " + cluster.getStats());
+        }
+        SearchIndex search = ChatServer.searchIndex;
+        if (search != null) {
+            lines.add("search " + search.getStats());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : dbTimers.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                lines.add("db " + entry.getKey() + ": " + entry.getValue().describe());
+            }
+        }
+        return lines;
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return clients.size();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    @Override
+    public double getMeanFanout() {
+        long count = broadcasts.sum();
+        return count == 0 ? 0 : (double) broadcastRecipients.sum() / count;
+    }
+
+    @Override
+    public long getFloodDelayed() {
+        return floodDelayed.sum();
+    }
+
+    @Override
+    public long getFloodDropped() {
+        return floodDropped.sum();
+    }
+
+    @Override
+    public long getFloodDisconnects() {
+        return floodDisconnects.sum();
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        long queued = 0;
+        for (ChatSession client : clients) {
+            queued += client.getOutbound().size();
+        }
+        return queued;
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        int deepest = 0;
+        for (ChatSession client : clients) {
+            deepest = Math.max(deepest, client.getOutbound().size());
+        }
+        return deepest;
+    }
+
+    @Override
+    public String[] getSnapshot() {
+        return snapshot().toArray(new String[0]);
+    }
+}
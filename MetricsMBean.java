@@ -0,0 +1,33 @@
+/**
+ * JMX view of the server-wide counters in Metrics; registered as
+ * chat:type=Metrics. Latencies are separate chat:type=Latency beans.
+ */
+public interface MetricsMBean {
+    int getConnectedClients();
+
+    long getConnectionsAccepted();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getBroadcasts();
+
+    double getMeanFanout();
+
+    long getFloodDelayed();
+
+    long getFloodDropped();
+
+    long getFloodDisconnects();
+
+    long getQueuedMessages();
+
+    int getMaxQueueDepth();
+
+    String[] getSnapshot();
+}
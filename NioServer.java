@@ -0,0 +1,578 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Selector-based server engine. A small fixed set of event-loop threads (one
+ * per core by default) multiplexes every client socket, instead of one
+ * blocked platform thread per user. Speaks the same newline-framed text
+ * protocol as ClientHandler, so existing clients work unchanged, and the
+ * FrameCodec binary protocol for clients that open with its MAGIC.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    // Largest frame plus its length field and the MAGIC preamble
+    private static final int MAX_FRAME_BUFFER = FrameCodec.MAX_FRAME_LENGTH + 4 + FrameCodec.MAGIC.length;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final BufferPool readBuffers;
+    private final BufferPool writeBuffers;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = false;
+    private int nextLoop = 0;
+
+    public NioServer(int port, int threads) {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, threads)];
+        this.readBuffers = new BufferPool(loops.length * 4, READ_BUFFER_SIZE, true);
+        // Sessions only hold a write buffer while they have unsent bytes
+        this.writeBuffers = new BufferPool(1024, WRITE_BUFFER_SIZE, true);
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+        }
+        // The first loop also accepts and hands new channels out round-robin
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            ChatServer.log("Error closing server channel: " + e.getMessage());
+        }
+        for (EventLoop loop : loops) {
+            if (loop == null) continue;
+            loop.selector.wakeup();
+            try {
+                loop.thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                NioSession session = new NioSession(channel, loop);
+                Metrics.connectionsAccepted.increment();
+                loop.execute(() -> loop.register(session));
+            }
+        } catch (IOException e) {
+            if (running) {
+                ChatServer.log("Server error: " + e.getMessage());
+            }
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void register(NioSession session) {
+            try {
+                session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+            } catch (IOException e) {
+                session.closeQuietly();
+                return;
+            }
+            ChatServer.registerClient(session);
+            session.onConnect();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(this::dispatch);
+                } catch (IOException e) {
+                    ChatServer.log("Selector error: " + e.getMessage());
+                }
+                runTasks();
+            }
+
+            // Let queued writes and closes settle, then drop whatever is left
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioSession) {
+                    ((NioSession) key.attachment()).closeQuietly();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void dispatch(SelectionKey key) {
+            if (!key.isValid()) return;
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            NioSession session = (NioSession) key.attachment();
+            if (key.isReadable()) {
+                session.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                session.flush();
+            }
+        }
+    }
+
+    private final class NioSession extends ChatSession {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private SelectionKey key;
+
+        // Bytes of the line (or binary frames) currently being decoded
+        private byte[] lineBuf = new byte[256];
+        private int lineLen = 0;
+        // Decided by the first byte the client sends
+        private boolean protocolKnown = false;
+        private boolean magicSeen = false;
+
+        // Frame being copied out of the queue and how much of it is already
+        // copied; offsets run over the wire header followed by the body
+        private SharedFrame current;
+        private int currentOffset = 0;
+        private int currentHeaderLength;
+        private byte[] currentBody;
+        private int currentBodyLength;
+        // Bytes ready for the socket; borrowed from writeBuffers only while non-empty
+        private ByteBuffer writeBuffer;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+        private final AtomicBoolean closing = new AtomicBoolean(false);
+        private final AtomicBoolean disconnected = new AtomicBoolean(false);
+        // onDisconnect() has run
+        private final AtomicBoolean left = new AtomicBoolean(false);
+        // Flood control with the delay action: while a message waits, the
+        // channel is not read, and the message and any bytes already read
+        // after it are held here until resume(). Loop thread only.
+        private boolean paused = false;
+        private String heldLine;
+        private FrameCodec.Frame heldFrame;
+        private ByteBuffer heldInput;
+
+        NioSession(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            try {
+                this.remoteAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            } catch (IOException e) {
+                // Keeps the default; the first read will fail anyway
+            }
+        }
+
+        @Override
+        protected void onOutboundReady() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                if (Thread.currentThread() == loop.thread) {
+                    flush();
+                } else {
+                    loop.execute(this::flush);
+                }
+            }
+        }
+
+        @Override
+        public void closeConnection() {
+            if (closing.compareAndSet(false, true)) {
+                outbound.close();
+                // Give already queued messages one chance to go out first
+                loop.execute(() -> {
+                    flush();
+                    disconnect();
+                });
+            }
+        }
+
+        @Override
+        protected void abortConnection() {
+            closing.set(true);
+            outbound.close();
+            outbound.clear();
+            loop.execute(this::disconnect);
+        }
+
+        void onReadable() {
+            ByteBuffer buffer = readBuffers.acquire();
+            try {
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    disconnect();
+                    return;
+                }
+                buffer.flip();
+                touch();
+                Metrics.bytesIn.add(read);
+                decode(buffer);
+            } catch (IOException e) {
+                ChatServer.log("Connection error with " + username + ": " + e.getMessage());
+                disconnect();
+            } finally {
+                readBuffers.release(buffer);
+            }
+        }
+
+        private void decode(ByteBuffer buffer) {
+            if (!protocolKnown && buffer.hasRemaining()) {
+                protocolKnown = true;
+                binary = buffer.get(buffer.position()) == FrameCodec.MAGIC[0];
+            }
+            if (binary) {
+                decodeFrames(buffer);
+            } else {
+                decodeLines(buffer);
+            }
+        }
+
+        private void decodeLines(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    int length = lineLen;
+                    if (length > 0 && lineBuf[length - 1] == '\r') {
+                        length--;
+                    }
+                    String line = new String(lineBuf, 0, length, StandardCharsets.UTF_8);
+                    lineLen = 0;
+                    Metrics.messagesIn.increment();
+                    long admitted = admit(line.length());
+                    if (admitted == FloodControl.CLOSE) {
+                        endSession();
+                        return;
+                    }
+                    if (admitted == FloodControl.DROP) {
+                        continue;
+                    }
+                    if (admitted > 0) {
+                        heldLine = line;
+                        pause(admitted);
+                        holdRest(buffer);
+                        return;
+                    }
+                    if (!handleLine(line)) {
+                        endSession();
+                        return;
+                    }
+                    if (closing.get() || disconnected.get()) return;
+                } else {
+                    if (lineLen == lineBuf.length) {
+                        if (lineLen >= MAX_LINE_LENGTH) {
+                            ChatServer.log("Line too long from " + username + ", closing connection");
+                            disconnect();
+                            return;
+                        }
+                        byte[] grown = new byte[Math.min(lineBuf.length * 2, MAX_LINE_LENGTH)];
+                        System.arraycopy(lineBuf, 0, grown, 0, lineLen);
+                        lineBuf = grown;
+                    }
+                    lineBuf[lineLen++] = b;
+                }
+            }
+        }
+
+        private void decodeFrames(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                if (lineLen == lineBuf.length) {
+                    if (lineLen >= MAX_FRAME_BUFFER) {
+                        ChatServer.log("Frame too long from " + username + ", closing connection");
+                        disconnect();
+                        return;
+                    }
+                    byte[] grown = new byte[Math.min(lineBuf.length * 2, MAX_FRAME_BUFFER)];
+                    System.arraycopy(lineBuf, 0, grown, 0, lineLen);
+                    lineBuf = grown;
+                }
+                int count = Math.min(buffer.remaining(), lineBuf.length - lineLen);
+                buffer.get(lineBuf, lineLen, count);
+                lineLen += count;
+                try {
+                    if (!handleFrames()) {
+                        endSession();
+                        return;
+                    }
+                } catch (IOException e) {
+                    ChatServer.log("Protocol error from " + username + ": " + e.getMessage());
+                    disconnect();
+                    return;
+                }
+                if (closing.get() || disconnected.get()) return;
+                if (paused) {
+                    holdRest(buffer);
+                    return;
+                }
+            }
+        }
+
+        // Handles every complete frame in lineBuf and keeps the partial rest
+        private boolean handleFrames() throws IOException {
+            int pos = 0;
+            if (!magicSeen) {
+                if (lineLen < FrameCodec.MAGIC.length) return true;
+                for (int i = 0; i < FrameCodec.MAGIC.length; i++) {
+                    if (lineBuf[i] != FrameCodec.MAGIC[i]) {
+                        throw new IOException("Bad protocol preamble");
+                    }
+                }
+                magicSeen = true;
+                pos = FrameCodec.MAGIC.length;
+            }
+            boolean keepGoing = true;
+            while (keepGoing && lineLen - pos >= 4) {
+                int length = FrameCodec.readInt(lineBuf, pos);
+                FrameCodec.checkLength(length);
+                if (lineLen - pos - 4 < length) break;
+                FrameCodec.Frame frame = FrameCodec.decode(lineBuf, pos + 4, length);
+                pos += 4 + length;
+                Metrics.messagesIn.increment();
+                long admitted = admit(frame.target.length() + frame.text.length());
+                if (admitted == FloodControl.CLOSE) {
+                    keepGoing = false;
+                    break;
+                }
+                if (admitted == FloodControl.DROP) {
+                    continue;
+                }
+                if (admitted > 0) {
+                    // Frames after this one stay in lineBuf
+                    heldFrame = frame;
+                    pause(admitted);
+                    break;
+                }
+                keepGoing = handleFrame(frame);
+                if (closing.get() || disconnected.get()) return true;
+            }
+            System.arraycopy(lineBuf, pos, lineBuf, 0, lineLen - pos);
+            lineLen -= pos;
+            return keepGoing;
+        }
+
+        // Stops reading for nanos; the timer wheel then schedules resume()
+        private void pause(long nanos) {
+            paused = true;
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            TimerWheel wheel = ChatServer.heartbeatWheel;
+            if (wheel != null) {
+                wheel.schedule(() -> loop.execute(this::resume), Math.max(1, nanos / 1_000_000));
+            } else {
+                loop.execute(this::resume);
+            }
+        }
+
+        // Keeps what is left of a read buffer for after the pause
+        private void holdRest(ByteBuffer buffer) {
+            if (buffer.hasRemaining()) {
+                heldInput = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+            }
+        }
+
+        // Handles the held message and whatever was read after it, then
+        // reads again unless another message has to wait
+        private void resume() {
+            if (!paused || disconnected.get()) return;
+            paused = false;
+            String line = heldLine;
+            FrameCodec.Frame frame = heldFrame;
+            heldLine = null;
+            heldFrame = null;
+            boolean keepGoing = line != null ? handleLine(line) : frame == null || handleFrame(frame);
+            try {
+                if (keepGoing && binary && !closing.get() && !disconnected.get()) {
+                    keepGoing = handleFrames();
+                }
+            } catch (IOException e) {
+                ChatServer.log("Protocol error from " + username + ": " + e.getMessage());
+                disconnect();
+                return;
+            }
+            if (!keepGoing) {
+                endSession();
+                return;
+            }
+            if (closing.get() || disconnected.get() || paused) return;
+            ByteBuffer input = heldInput;
+            heldInput = null;
+            if (input != null) {
+                decode(input);
+            }
+            if (!paused && !closing.get() && !disconnected.get()) {
+                setInterest(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        // The client quit or was refused: leave the rooms now, then let the
+        // replies already queued go out before the socket closes
+        private void endSession() {
+            leave();
+            closeConnection();
+        }
+
+        private void leave() {
+            if (left.compareAndSet(false, true)) {
+                onDisconnect();
+            }
+        }
+
+        // Drains the outbound queue into the socket; runs on the loop thread only.
+        // Shared frames are copied straight into a pooled direct buffer, which is
+        // the copy the JDK would otherwise make internally for heap buffers.
+        void flush() {
+            if (disconnected.get()) return;
+            try {
+                while (true) {
+                    if (writeBuffer == null) {
+                        writeBuffer = writeBuffers.acquire();
+                    }
+                    fill();
+
+                    if (writeBuffer.position() == 0) {
+                        writeBuffers.release(writeBuffer);
+                        writeBuffer = null;
+                        writeScheduled.set(false);
+                        // A producer may have enqueued after the poll but lost the CAS
+                        if (outbound.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+                            setInterest(SelectionKey.OP_READ);
+                            return;
+                        }
+                        continue;
+                    }
+
+                    writeBuffer.flip();
+                    Metrics.bytesOut.add(channel.write(writeBuffer));
+                    boolean partial = writeBuffer.hasRemaining();
+                    writeBuffer.compact();
+                    if (partial) {
+                        // Socket send buffer is full; resume when writable
+                        setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                ChatServer.log("Connection error with " + username + ": " + e.getMessage());
+                // flush() can run inside sendFrame() while the sender holds a
+                // room clock, and leaving takes loginLock, which resume takes
+                // before the clock; so the disconnect waits for the next task run
+                loop.execute(this::disconnect);
+            }
+        }
+
+        // Copies queued frames into writeBuffer until it is full or the queue is empty
+        private void fill() {
+            while (writeBuffer.hasRemaining()) {
+                if (current == null) {
+                    current = outbound.poll();
+                    currentOffset = 0;
+                    if (current == null) return;
+                    currentHeaderLength = wireHeader(current);
+                    currentBody = wireBody(current);
+                    currentBodyLength = wireBodyLength(current);
+                }
+                if (currentOffset < currentHeaderLength) {
+                    int count = Math.min(currentHeaderLength - currentOffset, writeBuffer.remaining());
+                    writeBuffer.put(wireHeaderBytes(), currentOffset, count);
+                    currentOffset += count;
+                    continue;
+                }
+                int bodyOffset = currentOffset - currentHeaderLength;
+                int count = Math.min(currentBodyLength - bodyOffset, writeBuffer.remaining());
+                writeBuffer.put(currentBody, bodyOffset, count);
+                currentOffset += count;
+                if (currentOffset == currentHeaderLength + currentBodyLength) {
+                    Metrics.messagesOut.increment();
+                    current.release();
+                    current = null;
+                    currentBody = null;
+                }
+            }
+        }
+
+        private void setInterest(int ops) {
+            if (key != null && key.isValid()) {
+                key.interestOps(paused ? ops & ~SelectionKey.OP_READ : ops);
+            }
+        }
+
+        private void disconnect() {
+            if (disconnected.compareAndSet(false, true)) {
+                leave();
+                closeQuietly();
+            }
+        }
+
+        void closeQuietly() {
+            disconnected.set(true);
+            outbound.close();
+            outbound.clear();
+            if (current != null) {
+                current.release();
+                current = null;
+                currentBody = null;
+            }
+            if (writeBuffer != null) {
+                writeBuffers.release(writeBuffer);
+                writeBuffer = null;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
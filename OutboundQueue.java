@@ -0,0 +1,171 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one client.
+ * Producers (broadcasting threads) never block: when the queue is full the
+ * configured overflow policy decides what gives. The queue owns one
+ * reference to every frame it holds and releases it when a frame is dropped.
+ */
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        DROP_OLDEST,   // discard the oldest queued message
+        DISCONNECT,    // treat the client as a slow consumer and drop it
+        COALESCE       // merge into the last queued entry, dropping oldest past a byte cap
+    }
+
+    private static final int MAX_COALESCED_BYTES = 64 * 1024;
+
+    private final ArrayDeque<SharedFrame> queue;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed = false;
+
+    // Per-client counters, guarded by lock for writes
+    private volatile long queuedBytes = 0;
+    private volatile long droppedBytes = 0;
+    private volatile long droppedMessages = 0;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.queue = new ArrayDeque<>(Math.min(capacity, 64));
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    // Returns false when the DISCONNECT policy rejected the message
+    public boolean offer(SharedFrame message) {
+        lock.lock();
+        try {
+            if (closed) {
+                message.release();
+                return true;
+            }
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case DISCONNECT:
+                        drop(message);
+                        return false;
+                    case COALESCE:
+                        SharedFrame last = queue.peekLast();
+                        if (last != null && !last.isRaw() && !message.isRaw()
+                            && last.length() + message.length() <= MAX_COALESCED_BYTES) {
+                            queue.pollLast();
+                            queue.addLast(SharedFrame.concat(last, message));
+                            last.release();
+                            message.release();
+                            queuedBytes += message.length();
+                            notEmpty.signal();
+                            return true;
+                        }
+                        drop(removeFirst());
+                        break;
+                    default:
+                        drop(removeFirst());
+                        break;
+                }
+            }
+            queue.addLast(message);
+            queuedBytes += message.length();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The caller takes over the queue's reference to the returned frame
+    public SharedFrame poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until a message is available; returns null once closed and drained
+    public SharedFrame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops accepting messages; already queued ones can still be drained
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Discards everything still queued
+    public void clear() {
+        lock.lock();
+        try {
+            SharedFrame message;
+            while ((message = removeFirst()) != null) {
+                drop(message);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    private SharedFrame removeFirst() {
+        SharedFrame message = queue.pollFirst();
+        if (message != null) {
+            queuedBytes -= message.length();
+        }
+        return message;
+    }
+
+    private void drop(SharedFrame message) {
+        if (message != null) {
+            droppedBytes += message.length();
+            droppedMessages++;
+            message.release();
+        }
+    }
+}
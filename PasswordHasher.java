@@ -0,0 +1,74 @@
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes. The stored hash records its
+ * own iteration count ("pbkdf2_sha256$<iterations>$<base64>"), so the
+ * default can be raised later without invalidating existing accounts.
+ *
+ * Hashing is deliberately slow (tens to hundreds of milliseconds); callers
+ * on I/O threads should go through Authenticator instead.
+ */
+public class PasswordHasher {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2_sha256";
+    // Overridable with -Dchat.auth.iterations=...
+    static final int ITERATIONS = Integer.getInteger("chat.auth.iterations", 210_000);
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
+    // Compared against when a user does not exist, so that costs the same
+    private static final String DUMMY_SALT = newSalt();
+    private static final String DUMMY_HASH = hash("not a password", DUMMY_SALT);
+
+    public static String newSalt() {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return Base64.getEncoder().encodeToString(salt);
+    }
+
+    public static String hash(String password, String salt) {
+        return PREFIX + "$" + ITERATIONS + "$" + encode(derive(password, salt, ITERATIONS));
+    }
+
+    // Constant-time check of password against a hash made by hash()
+    public static boolean verify(String password, String salt, String storedHash) {
+        String[] parts = storedHash == null ? new String[0] : storedHash.split("\\$");
+        if (parts.length != 3 || !parts[0].equals(PREFIX) || salt == null) {
+            return false;
+        }
+        try {
+            byte[] expected = Base64.getDecoder().decode(parts[2]);
+            byte[] actual = derive(password, salt, Integer.parseInt(parts[1]));
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // Burns the same time as a real verify(), for unknown usernames
+    public static boolean verifyNothing(String password) {
+        verify(password, DUMMY_SALT, DUMMY_HASH);
+        return false;
+    }
+
+    private static byte[] derive(String password, String salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), Base64.getDecoder().decode(salt),
+            iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+}
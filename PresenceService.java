@@ -0,0 +1,93 @@
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is online and with what status. Every change appends the user's name
+ * to a fixed-size ring of changes; observers remember the sequence number
+ * they have seen, pull the names changed since, and look up each name's
+ * current status. A user who joins and leaves between two pulls therefore
+ * costs an observer one lookup, however many times it happened.
+ *
+ * An observer that falls a whole ring behind gets -1 from changesSince()
+ * and has to start over from snapshot().
+ */
+public class PresenceService {
+    public enum Status { ONLINE, AWAY, BUSY }
+
+    private final ConcurrentHashMap<String, Status> roster = new ConcurrentHashMap<>();
+    private final String[] changes;
+    // Sequence number of the next change
+    private long nextChange = 0;
+
+    public PresenceService(int changeCapacity) {
+        this.changes = new String[changeCapacity];
+    }
+
+    public void online(String name) {
+        roster.put(name, Status.ONLINE);
+        changed(name);
+    }
+
+    public void offline(String name) {
+        if (roster.remove(name) != null) {
+            changed(name);
+        }
+    }
+
+    // Returns false if name is not online
+    public boolean setStatus(String name, Status status) {
+        if (roster.replace(name, status) == null) {
+            return false;
+        }
+        changed(name);
+        return true;
+    }
+
+    // Current status, or null if offline
+    public Status statusOf(String name) {
+        return roster.get(name);
+    }
+
+    public int size() {
+        return roster.size();
+    }
+
+    // Everyone online, sorted by name
+    public Map<String, Status> snapshot() {
+        return new TreeMap<>(roster);
+    }
+
+    public void clear() {
+        for (String name : roster.keySet()) {
+            offline(name);
+        }
+    }
+
+    private synchronized void changed(String name) {
+        changes[(int) (nextChange % changes.length)] = name;
+        nextChange++;
+    }
+
+    public synchronized long getSequence() {
+        return nextChange;
+    }
+
+    // Adds the names changed at or after sequence from to into and returns
+    // the sequence to pass next time, or -1 if some changes were overwritten
+    public synchronized long changesSince(long from, Collection<String> into) {
+        if (from < nextChange - changes.length) {
+            return -1;
+        }
+        for (long seq = from; seq < nextChange; seq++) {
+            into.add(changes[(int) (seq % changes.length)]);
+        }
+        return nextChange;
+    }
+
+    // Wire form used in PRESENCE frames: "+name status" or "-name"
+    public static String describe(String name, Status status) {
+        return status == null ? "-" + name : "+" + name + " " + status.name().toLowerCase();
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Two-way room membership index: room -> members and member -> rooms.
+ * Both sides are ConcurrentHashMaps and each room's member set doubles as
+ * that room's lock, so joins and leaves only contend within one room and
+ * nothing is ever copied on write. Empty rooms are retired together with
+ * their last member so they do not accumulate.
+ *
+ * An optional Listener hears when a room gets its first member and when it
+ * loses its last one. It is called under the room's lock, so the calls for
+ * one room arrive in order; it must not block.
+ */
+public class RoomRegistry<M> {
+    public interface Listener {
+        void roomChanged(String room, boolean occupied);
+    }
+
+    private final ConcurrentHashMap<String, Set<M>> membersByRoom = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<M, Set<String>> roomsByMember = new ConcurrentHashMap<>();
+    private final Listener listener;
+
+    public RoomRegistry() {
+        this(null);
+    }
+
+    public RoomRegistry(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Returns false if member was already in room
+    public boolean join(String room, M member) {
+        boolean added;
+        while (true) {
+            Set<M> members = membersByRoom.computeIfAbsent(room, name -> ConcurrentHashMap.newKeySet());
+            // Each room's set is its own lock; a concurrent leave may have just retired it
+            synchronized (members) {
+                if (membersByRoom.get(room) != members) continue;
+                added = members.add(member);
+                if (added && members.size() == 1 && listener != null) {
+                    listener.roomChanged(room, true);
+                }
+            }
+            break;
+        }
+        if (added) {
+            roomsByMember.computeIfAbsent(member, m -> ConcurrentHashMap.newKeySet()).add(room);
+        }
+        return added;
+    }
+
+    // Returns false if member was not in room
+    public boolean leave(String room, M member) {
+        Set<M> members = membersByRoom.get(room);
+        if (members == null) {
+            return false;
+        }
+        boolean removed;
+        synchronized (members) {
+            removed = members.remove(member);
+            if (members.isEmpty()) {
+                retire(room, members, removed);
+            }
+        }
+        if (removed) {
+            Set<String> rooms = roomsByMember.get(member);
+            if (rooms != null) {
+                rooms.remove(room);
+            }
+        }
+        return removed;
+    }
+
+    // Removes member from every room; returns the rooms it was in
+    public Set<String> leaveAll(M member) {
+        Set<String> rooms = roomsByMember.remove(member);
+        if (rooms == null) {
+            return Collections.emptySet();
+        }
+        for (String room : rooms) {
+            Set<M> members = membersByRoom.get(room);
+            if (members == null) continue;
+            synchronized (members) {
+                boolean removed = members.remove(member);
+                if (members.isEmpty()) {
+                    retire(room, members, removed);
+                }
+            }
+        }
+        return rooms;
+    }
+
+    // Drops an empty room; called with its lock held
+    private void retire(String room, Set<M> members, boolean lastLeft) {
+        if (membersByRoom.remove(room, members) && lastLeft && listener != null) {
+            listener.roomChanged(room, false);
+        }
+    }
+
+    // Live, read-only view; iteration is weakly consistent
+    public Set<M> members(String room) {
+        Set<M> members = membersByRoom.get(room);
+        return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+    }
+
+    public Set<String> roomsOf(M member) {
+        Set<String> rooms = roomsByMember.get(member);
+        return rooms == null ? Collections.emptySet() : Collections.unmodifiableSet(rooms);
+    }
+
+    public boolean isMember(String room, M member) {
+        Set<M> members = membersByRoom.get(room);
+        return members != null && members.contains(member);
+    }
+
+    public int roomCount() {
+        return membersByRoom.size();
+    }
+
+    // Sorted room -> member count, for listings
+    public Map<String, Integer> roomSizes() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        membersByRoom.forEach((room, members) -> sizes.put(room, members.size()));
+        return sizes;
+    }
+
+    public void clear() {
+        membersByRoom.clear();
+        roomsByMember.clear();
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-room message sequence numbers. A room's sequence number is the time
+ * the message was sent in epoch millis, moved on by a millisecond whenever
+ * two messages of the room would share one. Numbers therefore only grow
+ * within a room, keep growing across a restart without being stored
+ * anywhere, and line up across cluster nodes as far as their clocks do.
+ * They double as the message's sentAt, so paging back by time and resuming
+ * by sequence number use the same cursor.
+ *
+ * Each room's Clock is also its ordering lock: the caller numbers a message
+ * and hands it to the room's members while holding it, so every member
+ * receives a room's messages in sequence order.
+ */
+public class RoomSequences {
+    private final ConcurrentHashMap<String, Clock> clocks = new ConcurrentHashMap<>();
+
+    public static final class Clock {
+        // Highest number handed out or seen in the room; written with the
+        // clock locked, volatile for retire()
+        private volatile long last;
+
+        // Next number for a message sent now; call with the clock locked
+        public long next() {
+            long next = Math.max(last + 1, System.currentTimeMillis());
+            last = next;
+            return next;
+        }
+
+        // Notes a number handed out by another node, so later ones here come
+        // after it; call with the clock locked
+        public void observe(long sequence) {
+            last = Math.max(last, sequence);
+        }
+
+        // Call with the clock locked
+        public long last() {
+            return last;
+        }
+    }
+
+    public Clock clock(String room) {
+        return clocks.computeIfAbsent(room, r -> new Clock());
+    }
+
+    // Forgets a room nobody here is in any more. A room whose numbers ran
+    // ahead of the wall clock is kept, since a new Clock would hand them out
+    // again. Called under the room registry's lock, so it must not take the
+    // clock's.
+    public void retire(String room) {
+        long now = System.currentTimeMillis();
+        clocks.computeIfPresent(room, (r, clock) -> clock.last < now ? null : clock);
+    }
+
+    public int size() {
+        return clocks.size();
+    }
+
+    public void clear() {
+        clocks.clear();
+    }
+}
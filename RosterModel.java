@@ -0,0 +1,74 @@
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sorted list of online users for a JList. Updates are applied in place:
+ * a binary search finds the row and only that row is reported as added,
+ * removed or changed, so the list never gets rebuilt for a single join or
+ * leave.
+ */
+public class RosterModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    // Only ever filled from the server's presence updates, never serialized
+    private final transient List<String> names = new ArrayList<>();
+    private final transient Map<String, String> statuses = new HashMap<>();
+
+    @Override
+    public int getSize() {
+        return names.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        String name = names.get(index);
+        String status = statuses.get(name);
+        return "online".equals(status) ? name : name + " (" + status + ")";
+    }
+
+    // Adds or updates name, or removes it if status is null
+    public void apply(String name, String status) {
+        int index = Collections.binarySearch(names, name);
+        if (status == null) {
+            if (index >= 0) {
+                names.remove(index);
+                statuses.remove(name);
+                fireIntervalRemoved(this, index, index);
+            }
+        } else if (index >= 0) {
+            if (!status.equals(statuses.put(name, status))) {
+                fireContentsChanged(this, index, index);
+            }
+        } else {
+            int insertAt = -index - 1;
+            names.add(insertAt, name);
+            statuses.put(name, status);
+            fireIntervalAdded(this, insertAt, insertAt);
+        }
+    }
+
+    // Applies one line in PresenceService.describe() form
+    public void apply(String line) {
+        if (line.startsWith("-")) {
+            apply(line.substring(1), null);
+        } else if (line.startsWith("+")) {
+            int space = line.indexOf(' ');
+            if (space > 1) {
+                apply(line.substring(1, space), line.substring(space + 1));
+            }
+        }
+    }
+
+    public void clear() {
+        int size = names.size();
+        names.clear();
+        statuses.clear();
+        if (size > 0) {
+            fireIntervalRemoved(this, 0, size - 1);
+        }
+    }
+}
@@ -0,0 +1,660 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over chat messages for /search, kept on local disk.
+ *
+ * Every posting list belongs to one term in one room or conversation (its
+ * HistoryCache key), and a posting is just the message's sentAt, which for
+ * room messages is the room's sequence number. A search is always scoped,
+ * so it only reads the lists of its own room or conversation, and its hits
+ * resolve to messages through HistoryCache.at(key, sentAt).
+ *
+ * Like MessagePersister, the send path only drops messages into a bounded
+ * queue; one indexer thread splits them into terms in an in-memory buffer.
+ * Once the buffer holds enough postings, or the flush interval passes, it
+ * is written out as an immutable segment file:
+ *
+ *   postings   per list, varint deltas between ascending sentAt values
+ *   terms      the lists' keys ("<history key> <term>") as UTF-8, sorted
+ *   entries    per key, 24 bytes: term offset, term length, postings
+ *              offset, postings length, posting count, unused
+ *   footer     term count, terms and entries offsets, oldest and newest
+ *              sentAt, version, magic
+ *
+ * Segments are memory-mapped and searched in place with a binary search
+ * over the entries, so opening one reads nothing and a query only touches
+ * the pages it needs. Above MAX_SEGMENTS, the smallest are merged into one.
+ *
+ * Segments survive restarts; what was still buffered when the process died
+ * is lost, and so are messages that arrive while the queue is full.
+ */
+public class SearchIndex {
+    private static final int MAGIC = 0x43485358;   // "CHSX"
+    private static final int VERSION = 1;
+    private static final int ENTRY_SIZE = 24;
+    private static final int FOOTER_SIZE = 4 + 4 + 4 + 8 + 8 + 4 + 4;
+    // Longer runs of letters are not indexed (and cannot be searched for)
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int BATCH_SIZE = 1024;
+    private static final long POLL_MILLIS = 200;
+    private static final int MAX_SEGMENTS = 10;
+    private static final int MERGE_FACTOR = 5;
+    // Segments are mapped with one MappedByteBuffer each, so they stay well under 2 GB
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private final Path directory;
+    private final ArrayBlockingQueue<Entry> queue;
+    private final int flushPostings;
+    private final long flushIntervalMillis;
+    private final Thread indexer;
+    private volatile boolean running = false;
+    private long nextGeneration = 1;
+
+    // Guards buffer, flushing and swapping segments; searches hold it only
+    // while copying the buffered postings they need
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private HashMap<String, LongList> buffer = new HashMap<>();
+    // The buffer being written out as a segment, still searched until it is one
+    private HashMap<String, LongList> flushing;
+    // Written by the indexer thread only
+    private int bufferedPostings = 0;
+    private volatile List<Segment> segments = List.of();
+
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+
+    private record Entry(String key, long sentAt, String text) {}
+
+    public SearchIndex(Path directory, int capacity, int flushPostings, long flushIntervalMillis) {
+        this.directory = directory;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.flushPostings = flushPostings;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.indexer = new Thread(this::indexLoop, "search-indexer");
+    }
+
+    // Opens the segments already in the directory and starts indexing
+    public void start() throws IOException {
+        Files.createDirectories(directory);
+        List<Segment> opened = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // Left behind by a flush or merge that did not finish
+                    Files.deleteIfExists(file);
+                } else if (name.startsWith("segment-") && name.endsWith(".idx")) {
+                    long generation = Long.parseLong(name.substring(8, name.length() - 4));
+                    opened.add(Segment.open(file));
+                    nextGeneration = Math.max(nextGeneration, generation + 1);
+                }
+            }
+        }
+        segments = List.copyOf(opened);
+        running = true;
+        indexer.start();
+    }
+
+    // Queues message, stored under history key, for indexing; false if the
+    // queue is full and it was skipped. Never blocks.
+    public boolean submit(String key, ChatMessage message) {
+        if (!running || !queue.offer(new Entry(key, message.getSentAt(), message.getText()))) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // Stops accepting messages and writes out everything queued or buffered
+    public void close(long timeoutMillis) {
+        running = false;
+        try {
+            indexer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Lower-cased runs of letters and digits, each once, in order of appearance
+    public static List<String> terms(String text) {
+        LinkedHashSet<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    // True if text contains every term; used to check resolved hits
+    public static boolean matches(String text, List<String> terms) {
+        return terms(text).containsAll(terms);
+    }
+
+    // sentAt of the latest limit messages under history key, sent from fromMillis
+    // to toMillis inclusive, that contain every term; newest first
+    public long[] search(String key, List<String> terms, long fromMillis, long toMillis, int limit) {
+        searches.increment();
+        if (terms.isEmpty()) {
+            return new long[0];
+        }
+        LongList[] lists = new LongList[terms.size()];
+        List<Segment> current;
+        lock.readLock().lock();
+        try {
+            current = segments;
+            for (int i = 0; i < lists.length; i++) {
+                String list = key + " " + terms.get(i);
+                lists[i] = new LongList();
+                lists[i].addRange(buffer.get(list), fromMillis, toMillis);
+                if (flushing != null) {
+                    lists[i].addRange(flushing.get(list), fromMillis, toMillis);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (int i = 0; i < lists.length; i++) {
+            byte[] list = (key + " " + terms.get(i)).getBytes(StandardCharsets.UTF_8);
+            for (Segment segment : current) {
+                if (segment.maxTime >= fromMillis && segment.minTime <= toMillis) {
+                    int entry = segment.find(list);
+                    if (entry >= 0) {
+                        segment.postings(entry, fromMillis, toMillis, lists[i]);
+                    }
+                }
+            }
+            if (lists[i].size == 0) {
+                return new long[0];
+            }
+            lists[i].sortUnique();
+        }
+        // Rarest term first, so the candidates only shrink
+        Arrays.sort(lists, Comparator.comparingInt(list -> list.size));
+        LongList hits = lists[0];
+        for (int i = 1; i < lists.length && hits.size > 0; i++) {
+            hits = hits.intersect(lists[i]);
+        }
+        int count = Math.min(limit, hits.size);
+        long[] newest = new long[count];
+        for (int i = 0; i < count; i++) {
+            newest[i] = hits.values[hits.size - 1 - i];
+        }
+        return newest;
+    }
+
+    public String getStats() {
+        List<Segment> current = segments;
+        long bytes = 0;
+        for (Segment segment : current) {
+            bytes += segment.size();
+        }
+        return String.format("indexed=%d dropped=%d backlog=%d segments=%d segmentBytes=%d searches=%d flushes=%d merges=%d",
+            indexed.sum(), dropped.sum(), queue.size(), current.size(), bytes, searches.sum(), flushes.sum(),
+            merges.sum());
+    }
+
+    private void indexLoop() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        long lastFlush = System.currentTimeMillis();
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    apply(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            long now = System.currentTimeMillis();
+            if (bufferedPostings >= flushPostings
+                    || (bufferedPostings > 0 && now - lastFlush >= flushIntervalMillis)) {
+                flush();
+                mergeIfNeeded();
+                lastFlush = now;
+            }
+        }
+        if (bufferedPostings > 0) {
+            flush();
+        }
+    }
+
+    // Splits a batch into terms outside the lock, then adds it in one go
+    private void apply(List<Entry> batch) {
+        List<List<String>> terms = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            terms.add(terms(entry.text()));
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Entry entry = batch.get(i);
+                for (String term : terms.get(i)) {
+                    buffer.computeIfAbsent(entry.key() + " " + term, list -> new LongList()).add(entry.sentAt());
+                    bufferedPostings++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        indexed.add(batch.size());
+    }
+
+    // Writes the buffer out as a new segment; on failure its postings go back
+    // into the buffer for the next attempt
+    private void flush() {
+        lock.writeLock().lock();
+        try {
+            flushing = buffer;
+            buffer = new HashMap<>();
+            bufferedPostings = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Segment segment = null;
+        try {
+            segment = write(flushing);
+        } catch (IOException e) {
+            System.err.println("Failed to write search index segment: " + e.getMessage());
+        }
+        lock.writeLock().lock();
+        try {
+            if (segment != null) {
+                List<Segment> next = new ArrayList<>(segments);
+                next.add(segment);
+                segments = List.copyOf(next);
+                flushes.increment();
+            } else {
+                for (Map.Entry<String, LongList> list : flushing.entrySet()) {
+                    buffer.computeIfAbsent(list.getKey(), key -> new LongList()).addRange(list.getValue(),
+                        Long.MIN_VALUE, Long.MAX_VALUE);
+                    bufferedPostings += list.getValue().size;
+                }
+            }
+            flushing = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Segment write(Map<String, LongList> lists) throws IOException {
+        List<byte[]> keys = new ArrayList<>(lists.size());
+        Map<byte[], LongList> byKey = new IdentityHashMap<>(lists.size());
+        for (Map.Entry<String, LongList> list : lists.entrySet()) {
+            byte[] key = list.getKey().getBytes(StandardCharsets.UTF_8);
+            keys.add(key);
+            byKey.put(key, list.getValue());
+        }
+        keys.sort(Arrays::compareUnsigned);
+        try (SegmentWriter writer = new SegmentWriter(newSegmentPath())) {
+            for (byte[] key : keys) {
+                // Sorted on a copy: searches may still be reading the list
+                LongList postings = new LongList();
+                postings.addRange(byKey.get(key), Long.MIN_VALUE, Long.MAX_VALUE);
+                postings.sortUnique();
+                writer.add(key, postings);
+            }
+            return writer.finish();
+        }
+    }
+
+    // Merges the smallest segments once there are too many
+    private void mergeIfNeeded() {
+        List<Segment> current = segments;
+        if (current.size() <= MAX_SEGMENTS) {
+            return;
+        }
+        List<Segment> smallest = new ArrayList<>(current);
+        smallest.sort(Comparator.comparingLong(Segment::size));
+        smallest = smallest.subList(0, MERGE_FACTOR);
+        long bytes = 0;
+        for (Segment segment : smallest) {
+            bytes += segment.size();
+        }
+        if (bytes > MAX_SEGMENT_BYTES) {
+            return;
+        }
+        Segment merged;
+        try {
+            merged = merge(smallest);
+        } catch (IOException e) {
+            System.err.println("Failed to merge search index segments: " + e.getMessage());
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            List<Segment> next = new ArrayList<>(segments);
+            next.removeAll(smallest);
+            next.add(merged);
+            segments = List.copyOf(next);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        merges.increment();
+        // Searches still reading the old ones keep their mapping until it is collected
+        for (Segment segment : smallest) {
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                System.err.println("Failed to delete merged search index segment " + segment.path + ": "
+                    + e.getMessage());
+            }
+        }
+    }
+
+    // Walks the segments' sorted entries side by side, combining the lists
+    // of equal keys
+    private Segment merge(List<Segment> parts) throws IOException {
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>((a, b) -> Arrays.compareUnsigned(a.key, b.key));
+        for (Segment segment : parts) {
+            if (segment.termCount > 0) {
+                cursors.add(new Cursor(segment));
+            }
+        }
+        try (SegmentWriter writer = new SegmentWriter(newSegmentPath())) {
+            while (!cursors.isEmpty()) {
+                Cursor first = cursors.poll();
+                byte[] key = first.key;
+                LongList postings = new LongList();
+                first.segment.postings(first.entry, Long.MIN_VALUE, Long.MAX_VALUE, postings);
+                List<Cursor> advanced = new ArrayList<>();
+                advanced.add(first);
+                while (!cursors.isEmpty() && Arrays.equals(cursors.peek().key, key)) {
+                    Cursor same = cursors.poll();
+                    same.segment.postings(same.entry, Long.MIN_VALUE, Long.MAX_VALUE, postings);
+                    advanced.add(same);
+                }
+                postings.sortUnique();
+                writer.add(key, postings);
+                for (Cursor cursor : advanced) {
+                    if (cursor.advance()) {
+                        cursors.add(cursor);
+                    }
+                }
+            }
+            return writer.finish();
+        }
+    }
+
+    private Path newSegmentPath() {
+        return directory.resolve(String.format("segment-%08d.idx", nextGeneration++));
+    }
+
+    private static final class Cursor {
+        final Segment segment;
+        int entry = 0;
+        byte[] key;
+
+        Cursor(Segment segment) {
+            this.segment = segment;
+            this.key = segment.key(0);
+        }
+
+        boolean advance() {
+            if (++entry >= segment.termCount) {
+                return false;
+            }
+            key = segment.key(entry);
+            return true;
+        }
+    }
+
+    // An immutable, memory-mapped segment file; read with absolute gets
+    // only, so any number of threads can search it at once
+    private static final class Segment {
+        final Path path;
+        final MappedByteBuffer data;
+        final int termCount;
+        final int termsStart;
+        final int entriesStart;
+        final long minTime;
+        final long maxTime;
+
+        private Segment(Path path, MappedByteBuffer data) throws IOException {
+            this.path = path;
+            this.data = data;
+            int footer = data.capacity() - FOOTER_SIZE;
+            if (footer < 0 || data.getInt(footer + 32) != MAGIC || data.getInt(footer + 28) != VERSION) {
+                throw new IOException("Not a search index segment: " + path);
+            }
+            termCount = data.getInt(footer);
+            termsStart = data.getInt(footer + 4);
+            entriesStart = data.getInt(footer + 8);
+            minTime = data.getLong(footer + 12);
+            maxTime = data.getLong(footer + 20);
+        }
+
+        static Segment open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Search index segment too large: " + path);
+                }
+                // The mapping stays valid after the channel is closed
+                return new Segment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+        }
+
+        long size() {
+            return data.capacity();
+        }
+
+        // Entry of key, or -1
+        int find(byte[] key) {
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(mid, key);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private int compare(int entry, byte[] key) {
+            int base = entriesStart + entry * ENTRY_SIZE;
+            int offset = termsStart + data.getInt(base);
+            int length = data.getInt(base + 4);
+            int common = Math.min(length, key.length);
+            for (int i = 0; i < common; i++) {
+                int cmp = Byte.compareUnsigned(data.get(offset + i), key[i]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return Integer.compare(length, key.length);
+        }
+
+        byte[] key(int entry) {
+            int base = entriesStart + entry * ENTRY_SIZE;
+            byte[] key = new byte[data.getInt(base + 4)];
+            data.get(termsStart + data.getInt(base), key);
+            return key;
+        }
+
+        // Adds the entry's postings from fromMillis to toMillis to into, ascending
+        void postings(int entry, long fromMillis, long toMillis, LongList into) {
+            int base = entriesStart + entry * ENTRY_SIZE;
+            int position = data.getInt(base + 8);
+            int count = data.getInt(base + 16);
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data.get(position++);
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += delta;
+                if (value > toMillis) {
+                    return;
+                }
+                if (value >= fromMillis) {
+                    into.add(value);
+                }
+            }
+        }
+    }
+
+    // Writes a segment to a temporary file and moves it into place once complete
+    private static final class SegmentWriter implements Closeable {
+        private final Path target;
+        private final Path temp;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream terms = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        private final DataOutputStream entries = new DataOutputStream(entryBytes);
+        private int termCount = 0;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+        private boolean finished = false;
+
+        SegmentWriter(Path target) throws IOException {
+            this.target = target;
+            this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024));
+        }
+
+        // Keys must come in unsigned byte order, postings ascending and unique
+        void add(byte[] key, LongList postings) throws IOException {
+            if (postings.size == 0) {
+                return;
+            }
+            int start = out.size();
+            long previous = 0;
+            for (int i = 0; i < postings.size; i++) {
+                long delta = postings.values[i] - previous;
+                previous = postings.values[i];
+                while ((delta & ~0x7fL) != 0) {
+                    out.write((int) (delta & 0x7f) | 0x80);
+                    delta >>>= 7;
+                }
+                out.write((int) delta);
+            }
+            entries.writeInt(terms.size());
+            entries.writeInt(key.length);
+            entries.writeInt(start);
+            entries.writeInt(out.size() - start);
+            entries.writeInt(postings.size);
+            entries.writeInt(0);
+            terms.write(key);
+            termCount++;
+            minTime = Math.min(minTime, postings.values[0]);
+            maxTime = Math.max(maxTime, postings.values[postings.size - 1]);
+        }
+
+        Segment finish() throws IOException {
+            int termsStart = out.size();
+            terms.writeTo(out);
+            int entriesStart = out.size();
+            entryBytes.writeTo(out);
+            out.writeInt(termCount);
+            out.writeInt(termsStart);
+            out.writeInt(entriesStart);
+            out.writeLong(minTime);
+            out.writeLong(maxTime);
+            out.writeInt(VERSION);
+            out.writeInt(MAGIC);
+            out.close();
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+            return Segment.open(target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                out.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    // Growable array of longs
+    static final class LongList {
+        long[] values = new long[4];
+        int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        // Adds the values of other from fromMillis to toMillis; other may be null
+        void addRange(LongList other, long fromMillis, long toMillis) {
+            if (other == null) {
+                return;
+            }
+            for (int i = 0; i < other.size; i++) {
+                long value = other.values[i];
+                if (value >= fromMillis && value <= toMillis) {
+                    add(value);
+                }
+            }
+        }
+
+        void sortUnique() {
+            Arrays.sort(values, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique == 0 || values[i] != values[unique - 1]) {
+                    values[unique++] = values[i];
+                }
+            }
+            size = unique;
+        }
+
+        // Values in both; both must be sorted and unique
+        LongList intersect(LongList other) {
+            LongList result = new LongList();
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                long a = values[i];
+                long b = other.values[j];
+                if (a < b) {
+                    i++;
+                } else if (a > b) {
+                    j++;
+                } else {
+                    result.add(a);
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -1,29 +1,40 @@
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
 import java.awt.*;
 import java.awt.event.*;
-import java.io.*;
-import java.net.*;
-import java.util.concurrent.*;
-import java.util.regex.*;
-
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Swing admin console for ChatServer. It only observes the engine: log
+ * lines are pulled from ChatServer.logBuffer in one batch per refresh tick,
+ * and the log view keeps at most MAX_LOG_LINES lines.
+ */
 public class ServerGUI {
-    private static final int PORT = 12346;
     private static final int MAX_USERNAME_LENGTH = 20;
-    private static final Pattern USERNAME_PATTERN = Pattern.compile("^[a-zA-Z0-9_]{3,20}$");
-    
-    private static CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<>();
-    private static ServerSocket serverSocket;
-    private static boolean isRunning = false;
+    // How often the log and client list are refreshed
+    private static final int REFRESH_INTERVAL_MS = 100;
+    private static final int MAX_LOG_LINES = 5000;
+
+    // Sequence of the next log line to show
+    private static long logSequence = 0;
+    // Sequence of the next presence change to apply
+    private static long rosterSequence = -1;
     
     // GUI Components
     private static JTextArea logArea;
     private static JTextField messageField;
     private static JList<String> clientList;
-    private static DefaultListModel<String> clientListModel;
+    private static RosterModel clientListModel;
     private static JButton startStopButton;
     private static JLabel statusLabel;
 
     public static void main(String[] args) {
+        ChatServer.configure(args);
         SwingUtilities.invokeLater(() -> createAndShowGUI());
     }
 
@@ -54,7 +65,7 @@ public class ServerGUI {
         // Client list
         JPanel clientPanel = new JPanel(new BorderLayout());
         clientPanel.setPreferredSize(new Dimension(200, 0));
-        clientListModel = new DefaultListModel<>();
+        clientListModel = new RosterModel();
         clientList = new JList<>(clientListModel);
         JScrollPane clientScrollPane = new JScrollPane(clientList);
         clientPanel.add(new JLabel("Connected Clients:"), BorderLayout.NORTH);
@@ -92,192 +103,76 @@ public class ServerGUI {
 
         // Server control button action
         startStopButton.addActionListener(e -> {
-            if (!isRunning) {
-                startServer();
+            if (!ChatServer.isRunning()) {
+                ChatServer.start();
                 startStopButton.setText("Stop Server");
-                statusLabel.setText("Server Running on Port " + PORT);
+                statusLabel.setText("Server Running on Port " + ChatServer.getPort() + " (" + ChatServer.getIoMode() + ")");
                 statusLabel.setForeground(new Color(0, 150, 0));
             } else {
-                stopServer();
+                ChatServer.stop();
                 startStopButton.setText("Start Server");
                 statusLabel.setText("Server Stopped");
                 statusLabel.setForeground(Color.RED);
             }
         });
 
-        frame.setVisible(true);
-    }
+        // Pull engine state at a fixed rate instead of one EDT event per log line
+        new Timer(REFRESH_INTERVAL_MS, e -> refresh()).start();
 
-    private static void startServer() {
-        try {
-            serverSocket = new ServerSocket(PORT);
-            isRunning = true;
-            log("Server started on port " + PORT);
-            
-            new Thread(() -> {
-                while (isRunning) {
-                    try {
-                        Socket clientSocket = serverSocket.accept();
-                        ClientHandler clientHandler = new ClientHandler(clientSocket);
-                        clients.add(clientHandler);
-                        new Thread(clientHandler).start();
-                    } catch (IOException e) {
-                        if (isRunning) {
-                            log("Server error: " + e.getMessage());
-                        }
-                    }
-                }
-            }).start();
-        } catch (IOException e) {
-            log("Failed to start server: " + e.getMessage());
-        }
-    }
-
-    private static void stopServer() {
-        isRunning = false;
-        broadcast("[Server]: Server is shutting down...", null);
-        
-        // Close all client connections
-        for (ClientHandler client : clients) {
-            try {
-                client.sendMessage("[Server]: Server is shutting down");
-                client.closeConnection();
-            } catch (IOException e) {
-                log("Error closing client connection: " + e.getMessage());
-            }
-        }
-        clients.clear();
-        updateClientList();
-        
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-        } catch (IOException e) {
-            log("Error closing server socket: " + e.getMessage());
-        }
-        
-        log("Server stopped");
+        frame.setVisible(true);
     }
 
     private static void sendServerMessage() {
         String message = messageField.getText().trim();
         if (!message.isEmpty() && !message.equals("Type server message here...")) {
-            broadcast("[Server]: " + message, null);
-            log("[Server]: " + message);
+            ChatServer.broadcastServerMessage(message);
             messageField.setText("");
         }
     }
 
-    public static void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            if (client != sender) {
-                client.sendMessage(message);
+    // Runs on the EDT every REFRESH_INTERVAL_MS
+    private static void refresh() {
+        List<String> lines = new ArrayList<>();
+        logSequence = ChatServer.logBuffer.drainSince(logSequence, lines);
+        if (!lines.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (String line : lines) {
+                sb.append(line).append('\n');
             }
-        }
-    }
-
-    public static void log(String message) {
-        SwingUtilities.invokeLater(() -> {
-            logArea.append(message + "\n");
+            logArea.append(sb.toString());
+            trimLog();
             logArea.setCaretPosition(logArea.getDocument().getLength());
-        });
-    }
+        }
 
-    public static void updateClientList() {
-        SwingUtilities.invokeLater(() -> {
+        // Apply only the users that changed since the last tick
+        Set<String> changed = new LinkedHashSet<>();
+        long next = rosterSequence < 0 ? -1 : ChatServer.presence.changesSince(rosterSequence, changed);
+        if (next < 0) {
+            // First tick, or too far behind: start over from the full roster
+            rosterSequence = ChatServer.presence.getSequence();
             clientListModel.clear();
-            for (ClientHandler client : clients) {
-                if (client.getUsername() != null) {
-                    clientListModel.addElement(client.getUsername() + 
-                        (client.isAuthenticated() ? " ✓" : ""));
-                }
-            }
-        });
-    }
-
-    private static class ClientHandler implements Runnable {
-        private Socket clientSocket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private String username;
-        private boolean authenticated = false;
-
-        public ClientHandler(Socket socket) {
-            this.clientSocket = socket;
-            try {
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            } catch (IOException e) {
-                log("Error creating client handler: " + e.getMessage());
+            for (Map.Entry<String, PresenceService.Status> entry : ChatServer.presence.snapshot().entrySet()) {
+                clientListModel.apply(entry.getKey(), entry.getValue().name().toLowerCase());
             }
+            return;
         }
-
-        public String getUsername() {
-            return username;
-        }
-
-        public boolean isAuthenticated() {
-            return authenticated;
-        }
-
-        public void sendMessage(String message) {
-            out.println(message);
-        }
-
-        public void closeConnection() throws IOException {
-            out.close();
-            in.close();
-            clientSocket.close();
+        rosterSequence = next;
+        for (String name : changed) {
+            PresenceService.Status status = ChatServer.presence.statusOf(name);
+            clientListModel.apply(name, status == null ? null : status.name().toLowerCase());
         }
+    }
 
-        @Override
-        public void run() {
+    // Drops the oldest lines once the log view is over MAX_LOG_LINES
+    private static void trimLog() {
+        Element root = logArea.getDocument().getDefaultRootElement();
+        int excess = root.getElementCount() - MAX_LOG_LINES;
+        if (excess > 0) {
             try {
-                // Get username
-                out.println("Enter your username:");
-                String input = in.readLine();
-                
-                // Validate username
-                while (input == null || !USERNAME_PATTERN.matcher(input).matches()) {
-                    out.println("Invalid username! Must be 3-20 alphanumeric characters. Try again:");
-                    input = in.readLine();
-                    if (input == null) break;
-                }
-                
-                if (input != null) {
-                    username = input;
-                    authenticated = true;
-                    log(username + " connected");
-                    out.println("Welcome " + username + "! Type /help for commands.");
-                    updateClientList();
-                    broadcast(username + " has joined the chat", this);
-
-                    // Process messages
-                    String message;
-                    while ((message = in.readLine()) != null) {
-                        if (message.startsWith("/quit")) {
-                            break;
-                        }
-                        log("[" + username + "]: " + message);
-                        broadcast("[" + username + "]: " + message, this);
-                    }
-                }
-            } catch (IOException e) {
-                log("Connection error with " + username + ": " + e.getMessage());
-            } finally {
-                try {
-                    if (username != null) {
-                        broadcast(username + " has left the chat", this);
-                        log(username + " disconnected");
-                    }
-                    clients.remove(this);
-                    updateClientList();
-                    closeConnection();
-                } catch (IOException e) {
-                    log("Error closing connection: " + e.getMessage());
-                }
+                logArea.getDocument().remove(0, root.getElement(excess - 1).getEndOffset());
+            } catch (BadLocationException e) {
+                logArea.setText("");
             }
         }
     }
-}
\ No newline at end of file
+}
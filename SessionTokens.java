@@ -0,0 +1,72 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resumable session tokens. A client that has logged in with its password
+ * gets a random token it can present instead when it reconnects, which
+ * costs a map lookup rather than another password hash.
+ *
+ * Tokens are single use: redeeming one removes it, and a successful login
+ * issues a fresh one. They expire after a fixed lifetime; expired entries
+ * are dropped on lookup and by purgeExpired(), and the cache never holds
+ * more than maxTokens.
+ */
+public class SessionTokens {
+    private static final int TOKEN_BYTES = 32;
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final class Entry {
+        final String username;
+        final long expiresAt;
+
+        Entry(String username, long expiresAt) {
+            this.username = username;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> tokens = new ConcurrentHashMap<>();
+    private final long lifetimeMillis;
+    private final int maxTokens;
+
+    public SessionTokens(long lifetimeMillis, int maxTokens) {
+        this.lifetimeMillis = lifetimeMillis;
+        this.maxTokens = maxTokens;
+    }
+
+    // Returns a new token for username, or null if the cache is full
+    public String issue(String username) {
+        if (tokens.size() >= maxTokens && purgeExpired() == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        tokens.put(token, new Entry(username, System.currentTimeMillis() + lifetimeMillis));
+        return token;
+    }
+
+    // Consumes token; true if it was issued to username and has not expired
+    public boolean redeem(String token, String username) {
+        Entry entry = tokens.remove(token);
+        return entry != null && entry.username.equals(username)
+            && entry.expiresAt > System.currentTimeMillis();
+    }
+
+    // Returns how many tokens were dropped
+    public int purgeExpired() {
+        long now = System.currentTimeMillis();
+        int before = tokens.size();
+        tokens.values().removeIf(entry -> entry.expiresAt <= now);
+        return Math.max(0, before - tokens.size());
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    public void clear() {
+        tokens.clear();
+    }
+}
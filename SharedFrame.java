@@ -0,0 +1,151 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One outgoing line, encoded to UTF-8 exactly once and shared read-only by
+ * every recipient's outbound queue. Each holder owns one reference; the
+ * last release() returns the backing buffer to the pool.
+ *
+ * Binary-protocol sessions write the same bytes, minus the newline, behind
+ * a FrameCodec TEXT header, naming the room if the line is one of its
+ * numbered chat messages. Raw frames (acks, errors, the login prompt)
+ * are already in their wire format and are written as-is.
+ */
+public final class SharedFrame {
+    private static final int POOLED_FRAME_SIZE = 1024;
+    private static final BufferPool POOL = new BufferPool(8192, POOLED_FRAME_SIZE, false);
+    private static final byte[] NO_TARGET = new byte[0];
+    private static final ThreadLocal<CharsetEncoder> ENCODER =
+        ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder());
+
+    private final ByteBuffer buffer;
+    private final int length;
+    private final boolean pooled;
+    private final boolean raw;
+    // Server time the line was produced, epoch millis; 0 for raw frames. For
+    // a room's chat line also its sequence number.
+    private final long stamp;
+    // Room of a chat line as UTF-8, otherwise empty
+    private final byte[] target;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    // System.nanoTime() when the message that caused this line was read; the
+    // last release() records the delivery latency. 0 = not measured.
+    private long receivedNanos = 0;
+    // Compressed line for binary sessions, computed by the first one that needs it
+    private volatile byte[] deflated;
+
+    private SharedFrame(ByteBuffer buffer, int length, boolean pooled, boolean raw, long stamp, byte[] target) {
+        this.buffer = buffer;
+        this.length = length;
+        this.pooled = pooled;
+        this.raw = raw;
+        this.stamp = stamp;
+        this.target = target;
+    }
+
+    // Encodes message plus a trailing newline; the caller owns the first reference
+    public static SharedFrame encode(String message) {
+        return encode(message, System.currentTimeMillis());
+    }
+
+    // Same, for a line that was first said at stamp (e.g. replayed history)
+    public static SharedFrame encode(String message, long stamp) {
+        return encode(message, stamp, null);
+    }
+
+    // Same, for a chat line of room, stamped with its sequence number; a
+    // null room makes it a plain line
+    public static SharedFrame encode(String message, long stamp, String room) {
+        byte[] target = room == null ? NO_TARGET : room.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = POOL.acquire();
+        CharsetEncoder encoder = ENCODER.get().reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(message), buffer, true);
+        if (!result.isOverflow()) {
+            result = encoder.flush(buffer);
+        }
+        if (result.isOverflow() || !buffer.hasRemaining()) {
+            // Too large for a pooled buffer
+            POOL.release(buffer);
+            byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            return new SharedFrame(ByteBuffer.wrap(bytes), bytes.length, false, false, stamp, target);
+        }
+        buffer.put((byte) '\n');
+        return new SharedFrame(buffer, buffer.position(), true, false, stamp, target);
+    }
+
+    // Wraps bytes that are already in wire format, e.g. from FrameCodec.encode
+    public static SharedFrame raw(byte[] frame) {
+        return new SharedFrame(ByteBuffer.wrap(frame), frame.length, false, true, 0, NO_TARGET);
+    }
+
+    // Concatenates two frames into a new one; used when coalescing a backlog.
+    // It keeps the first one's number, so a client resuming after it gets
+    // the second line again rather than missing it.
+    public static SharedFrame concat(SharedFrame first, SharedFrame second) {
+        byte[] bytes = new byte[first.length + second.length];
+        System.arraycopy(first.array(), 0, bytes, 0, first.length);
+        System.arraycopy(second.array(), 0, bytes, first.length, second.length);
+        byte[] target = Arrays.equals(first.target, second.target) ? first.target : NO_TARGET;
+        return new SharedFrame(ByteBuffer.wrap(bytes), bytes.length, false, false, first.stamp, target);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public long getStamp() {
+        return stamp;
+    }
+
+    // Room the line was said in as UTF-8, empty unless it is a chat line
+    public byte[] target() {
+        return target;
+    }
+
+    public boolean isRaw() {
+        return raw;
+    }
+
+    // Must be called before the frame is handed to other threads
+    public SharedFrame measureDeliveryFrom(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+        return this;
+    }
+
+    // Line without its newline, deflate-compressed; only valid while a reference is held
+    public byte[] deflated() {
+        byte[] result = deflated;
+        if (result == null) {
+            result = FrameCodec.deflate(buffer.array(), 0, length - 1);
+            deflated = result;
+        }
+        return result;
+    }
+
+    // Backing array; bytes [0, length()) are the frame. Must not be modified.
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    public SharedFrame retain() {
+        refCnt.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        int remaining = refCnt.decrementAndGet();
+        if (remaining == 0 && receivedNanos != 0) {
+            Metrics.delivery.recordSince(receivedNanos);
+        }
+        if (remaining == 0 && pooled) {
+            POOL.release(buffer);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("SharedFrame released too many times");
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches users.is_online / last_login updates. Logins and logouts only
+ * record the latest state per user in a map; a background task writes
+ * whatever accumulated as one JDBC batch every flush interval, so a user
+ * who reconnects ten times in a second costs one row update. A batch
+ * that fails goes back into the map and is tried again next interval.
+ */
+public class StatusPersister {
+    public static final class Change {
+        final boolean online;
+        // Epoch millis of the latest login in this batch, 0 if none
+        final long lastLogin;
+
+        Change(boolean online, long lastLogin) {
+            this.online = online;
+            this.lastLogin = lastLogin;
+        }
+    }
+
+    private final long flushIntervalMillis;
+    private final ConcurrentHashMap<String, Change> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private volatile long written = 0;
+
+    public StatusPersister(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "status-persister");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        // Nobody is online yet, whatever a previous run left behind
+        JdbcConnectivity.markAllOffline();
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void record(String username, boolean online) {
+        long login = online ? System.currentTimeMillis() : 0;
+        pending.merge(username, new Change(online, login),
+            (old, now) -> new Change(now.online, Math.max(old.lastLogin, now.lastLogin)));
+    }
+
+    // Writes everything recorded so far
+    public void flush() {
+        if (pending.isEmpty()) return;
+        Map<String, Change> batch = new HashMap<>();
+        for (String username : pending.keySet()) {
+            Change change = pending.remove(username);
+            if (change != null) {
+                batch.put(username, change);
+            }
+        }
+        int updated = JdbcConnectivity.updateUserStatuses(batch);
+        if (updated < 0) {
+            // Retried on the next tick; a change recorded since then is newer
+            batch.forEach((username, change) -> pending.merge(username, change,
+                (now, old) -> new Change(now.online, Math.max(old.lastLogin, now.lastLogin))));
+        } else {
+            written += updated;
+        }
+    }
+
+    // Final flush, then everyone is marked offline since the server is going away
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        JdbcConnectivity.markAllOffline();
+    }
+
+    public long getWrittenCount() {
+        return written;
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel for very many coarse timeouts, such as one heartbeat
+ * check per connection. Scheduling and cancelling are O(1) and never take
+ * a lock shared with other schedulers; a single thread advances the wheel
+ * one slot per tick and runs whatever expired, so tasks must be short.
+ *
+ * Deadlines are rounded up to the next tick.
+ */
+public class TimerWheel {
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] slots;
+    // New timeouts wait here until the wheel thread files them into a slot
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startNanos = System.nanoTime();
+    private volatile boolean running = false;
+    private long tick = 0;   // wheel thread only
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickMillis, int slotCount, String name) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.slots = new ArrayDeque[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    // Runs task on the wheel thread once delayMillis have passed
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long elapsedTicks = (System.nanoTime() - startNanos) / tickNanos;
+        long delayTicks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+        Timeout timeout = new Timeout(task, elapsedTicks + delayTicks);
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (running) {
+            long nextTickNanos = startNanos + (tick + 1) * tickNanos;
+            long sleepNanos = nextTickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) return;
+                }
+            }
+            tick++;
+            fileIncoming();
+            expire(slots[(int) (tick % slots.length)]);
+        }
+    }
+
+    private void fileIncoming() {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (!timeout.cancelled) {
+                // Anything already due goes into the slot expired this tick
+                slots[(int) (Math.max(timeout.deadlineTick, tick) % slots.length)].add(timeout);
+            }
+        }
+    }
+
+    // Runs timeouts in slot whose deadline has come; later rounds stay put
+    private void expire(ArrayDeque<Timeout> slot) {
+        Iterator<Timeout> it = slot.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.deadlineTick <= tick) {
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Timer task failed: " + e);
+                }
+            }
+        }
+    }
+}
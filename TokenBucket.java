@@ -0,0 +1,62 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket whose whole state is one long: the System.nanoTime() at which
+ * the bucket would be full again (the "theoretical arrival time" of the
+ * generic cell rate algorithm). Taking n tokens moves that time n token
+ * intervals forward; the take is refused while it would end up more than a
+ * burst's worth of intervals ahead of now. A check is a read, some
+ * arithmetic and one CAS, so it neither locks nor allocates, and refilling
+ * needs no timer.
+ */
+public final class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    // ratePerSecond tokens are added per second, up to burst tokens
+    public TokenBucket(double ratePerSecond, long burst) {
+        this.nanosPerToken = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    // Takes tokens if they are all there; returns 0 if taken, otherwise the
+    // nanoseconds until they would be, and takes nothing
+    public long tryAcquire(long tokens, long nowNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, nowNanos) + tokens * nanosPerToken;
+            long excess = next - nowNanos - burstNanos;
+            if (excess > 0) {
+                return excess;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    // Takes tokens even if that overdraws the bucket; returns how long the
+    // caller should wait before going ahead, 0 if it need not wait
+    public long reserve(long tokens, long nowNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, nowNanos) + tokens * nanosPerToken;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - nowNanos - burstNanos);
+            }
+        }
+    }
+
+    // Gives back tokens taken by a check that was then refused elsewhere
+    public void refund(long tokens) {
+        fullAt.addAndGet(-tokens * nanosPerToken);
+    }
+
+    // True if the bucket has refilled completely, i.e. it is as good as new
+    public boolean isFull(long nowNanos) {
+        return fullAt.get() - nowNanos <= 0;
+    }
+}
@@ -0,0 +1,75 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Fan-out of one message to every connected client (ChatServer.broadcast)
+ * and to every member of a room (broadcastToRoom). Recipients are
+ * in-memory sessions that release each frame as soon as it is queued, so
+ * the figure is the server-side cost of a broadcast without any sockets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    private static final String ROOM = "bench";
+
+    @Param({"10", "1000", "10000"})
+    int recipients;
+
+    private final List<NullSession> sessions = new ArrayList<>();
+
+    // Discards whatever is queued for it, on the broadcasting thread
+    static final class NullSession extends ChatSession {
+        @Override
+        protected void onOutboundReady() {
+            SharedFrame frame;
+            while ((frame = outbound.poll()) != null) {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void closeConnection() {
+        }
+
+        @Override
+        protected void abortConnection() {
+        }
+    }
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < recipients; i++) {
+            NullSession session = new NullSession();
+            sessions.add(session);
+            ChatServer.registerClient(session);
+            ChatServer.rooms.join(ROOM, session);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (NullSession session : sessions) {
+            ChatServer.rooms.leaveAll(session);
+            ChatServer.unregisterClient(session);
+        }
+        sessions.clear();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        ChatServer.broadcast("[alice]: hello everyone, this is a typical chat line", null);
+    }
+
+    @Benchmark
+    public void broadcastToRoom() {
+        ChatServer.broadcastToRoom(ROOM, "[#bench] [alice]: hello room, this is a typical chat line", null);
+    }
+}
@@ -0,0 +1,83 @@
+package chat;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Client-list updates as the number of connected users grows: one user
+ * joining and leaving a room in RoomRegistry, going online and offline in
+ * PresenceService, and the same change applied to the client's sorted
+ * RosterModel. The old global CopyOnWriteArrayList is kept as a baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClientListBenchmark {
+    private static final int ROOMS = 10_000;
+    private static final int ROOMS_PER_USER = 3;
+
+    @Param({"1000", "10000", "100000"})
+    int users;
+
+    private RoomRegistry<Integer> registry;
+    private PresenceService presence;
+    private RosterModel roster;
+    private CopyOnWriteArrayList<Integer> clientList;
+
+    @Setup
+    public void setup() {
+        registry = new RoomRegistry<>();
+        presence = new PresenceService(65536);
+        roster = new RosterModel();
+        clientList = new CopyOnWriteArrayList<>();
+        for (int user = 0; user < users; user++) {
+            for (int i = 0; i < ROOMS_PER_USER; i++) {
+                registry.join("r" + ((user * 31 + i * 7919) % ROOMS), user);
+            }
+            presence.online(name(user));
+            roster.apply(name(user), "online");
+            clientList.add(user);
+        }
+    }
+
+    private static String name(int user) {
+        return "user" + user;
+    }
+
+    @Benchmark
+    public boolean roomJoinLeave() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Integer user = random.nextInt(users);
+        String room = "r" + random.nextInt(ROOMS);
+        registry.join(room, user);
+        return registry.leave(room, user);
+    }
+
+    @Benchmark
+    public long presenceOnlineOffline() {
+        String name = name(users + ThreadLocalRandom.current().nextInt(users));
+        presence.online(name);
+        presence.offline(name);
+        return presence.getSequence();
+    }
+
+    @Benchmark
+    public int rosterJoinLeave() {
+        String name = name(users + ThreadLocalRandom.current().nextInt(users));
+        roster.apply(name, "online");
+        roster.apply(name, null);
+        return roster.getSize();
+    }
+
+    @Benchmark
+    public boolean copyOnWriteAddRemove() {
+        Integer user = users + ThreadLocalRandom.current().nextInt(users);
+        clientList.add(user);
+        return clientList.remove(user);
+    }
+}
@@ -0,0 +1,37 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The flood check every inbound message goes through: the connection's and
+ * the user's message and byte buckets. The limits are high enough that
+ * every message is admitted, which is the common case. Run with -prof gc to
+ * see that a check allocates nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FloodControlBenchmark {
+    @Param({"DELAY", "DROP"})
+    FloodControl.Action action;
+
+    FloodControl flood;
+    FloodControl.Buckets connection;
+    FloodControl.Buckets user;
+
+    @Setup
+    public void setUp() {
+        flood = new FloodControl(1e9, 1_000_000, 1e12, 1_000_000_000L, 1e9, 1_000_000, 1e12, 1_000_000_000L, action);
+        connection = flood.newConnection();
+        user = flood.forUser("alice");
+    }
+
+    @Benchmark
+    public long admit() {
+        return flood.admit(connection, user, 100);
+    }
+}
@@ -0,0 +1,95 @@
+package chat;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Message framing and parsing: encoding a binary frame, decoding one, the
+ * encode-once SharedFrame used for broadcasts, and inbound parse
+ * throughput of the newline text protocol against FrameCodec over the
+ * same messages held in memory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({"16", "100", "1000"})
+    int messageLength;
+
+    private String text;
+    private byte[] frame;
+    private byte[] lineBatch;
+    private byte[] frameBatch;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder sb = new StringBuilder(messageLength);
+        for (int i = 0; i < messageLength; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        text = sb.toString();
+        frame = FrameCodec.encode(FrameCodec.CHAT, 42, "lobby", text, false);
+
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        byte[] line = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < BATCH; i++) {
+            lines.write(line);
+            frames.write(FrameCodec.encode(FrameCodec.CHAT, i, "", text, false));
+        }
+        lineBatch = lines.toByteArray();
+        frameBatch = frames.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeFrame() {
+        return FrameCodec.encode(FrameCodec.CHAT, 42, "lobby", text, false);
+    }
+
+    @Benchmark
+    public FrameCodec.Frame decodeFrame() throws IOException {
+        return FrameCodec.decode(frame, 4, frame.length - 4);
+    }
+
+    @Benchmark
+    public int encodeSharedFrame() {
+        SharedFrame shared = SharedFrame.encode(text);
+        int length = shared.length();
+        shared.release();
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void parseTextLines(Blackhole bh) throws IOException {
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new ByteArrayInputStream(lineBatch), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            bh.consume(line);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void parseBinaryFrames(Blackhole bh) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frameBatch));
+        FrameCodec.Frame decoded;
+        while ((decoded = FrameCodec.read(in)) != null) {
+            bh.consume(decoded);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package chat;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JdbcConnectivity insert and history paths against an embedded H2
+ * database in MySQL mode: batched inserts from the write-behind persister,
+ * keyset pages of a conversation and a room, the gap replayed to a
+ * resuming client, a streamed conversation export, the old OR-predicate
+ * history query as a baseline, and the LIKE scan a text search would need
+ * without SearchIndex.
+ *
+ * Users 1 and 2 exchange ~1% of all messages; the rest are spread over
+ * USERS users and ROOMS rooms. Figures are relative: a real MySQL server
+ * adds a network round trip to every call.
+ *
+ * The default 100,000 rows load in seconds. The 10,000,000-row table that
+ * the keyset and streaming changes were measured on is too big for an
+ * in-memory database (about 6 GB); run it against an H2 file instead:
+ *
+ *   java -jar benchmarks.jar JdbcBenchmark -p rows=10000000 -jvmArgsAppend \
+ *       "-Dchat.db.url=jdbc:h2:./bench-db;MODE=MySQL;DATABASE_TO_LOWER=TRUE -Dchat.db.user=sa -Dchat.db.password="
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+    "-Dchat.db.url=jdbc:h2:mem:bench;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1",
+    "-Dchat.db.user=sa", "-Dchat.db.password="})
+@State(Scope.Benchmark)
+public class JdbcBenchmark {
+    private static final int USERS = 1_000;
+    private static final int ROOMS = 100;
+    private static final int INSERT_BATCH = 10_000;
+    private static final int PAGE_SIZE = 50;
+    private static final int PERSIST_BATCH = 100;
+    // Sequence numbers a resuming client missed, ~RESUME_GAP / 2 / ROOMS messages of its room
+    private static final int RESUME_GAP = 5_000;
+    private static final int RESUME_LIMIT = 200;
+
+    @Param({"100000"})
+    int rows;
+
+    private long maxId;
+    private List<ChatMessage> batch;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        try (Connection conn = JdbcConnectivity.getConnection()) {
+            createSchema(conn);
+            populate(conn);
+        }
+        maxId = rows;
+        batch = new ArrayList<>();
+        for (int i = 0; i < PERSIST_BATCH; i++) {
+            batch.add(i % 2 == 0
+                ? new ChatMessage(0, "user1", null, "room1", "hello " + i, ChatMessage.PUBLIC,
+                    System.currentTimeMillis(), true)
+                : new ChatMessage(0, "user1", "user2", null, "psst " + i, ChatMessage.PRIVATE,
+                    System.currentTimeMillis(), true));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        try (Connection conn = JdbcConnectivity.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+        JdbcConnectivity.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PERSIST_BATCH)
+    public int persistMessages() {
+        return JdbcConnectivity.persistMessages(batch);
+    }
+
+    @Benchmark
+    public List<ChatMessage> conversationNewestPage() {
+        return JdbcConnectivity.getConversationPage(1, 2, JdbcConnectivity.NO_CURSOR, true, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<ChatMessage> conversationPageBack() {
+        long cursor = 1 + ThreadLocalRandom.current().nextLong(maxId);
+        return JdbcConnectivity.getConversationPage(1, 2, cursor, true, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<ChatMessage> roomPageBack() {
+        long cursor = 1 + ThreadLocalRandom.current().nextLong(maxId);
+        return JdbcConnectivity.getRoomPage("room" + ThreadLocalRandom.current().nextInt(ROOMS), cursor, true,
+            PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<ChatMessage> roomResume() {
+        long after = ThreadLocalRandom.current().nextLong(maxId - RESUME_GAP);
+        return JdbcConnectivity.getRoomPageBetween("room" + ThreadLocalRandom.current().nextInt(ROOMS), after,
+            after + RESUME_GAP, RESUME_LIMIT);
+    }
+
+    @Benchmark
+    public int findUserId() {
+        return JdbcConnectivity.findUserId("user" + (1 + ThreadLocalRandom.current().nextInt(USERS)));
+    }
+
+    // The whole hot conversation through the fetch-size cursor; compare
+    // legacyOrHistory
+    @Benchmark
+    public int streamConversation() {
+        return JdbcConnectivity.streamConversation(1, 2, 0, message -> { });
+    }
+
+    // The query getMessageHistory() used before keyset paging
+    @Benchmark
+    public int legacyOrHistory() throws SQLException {
+        String sql = "SELECT u.username, m.message, m.sent_at " +
+                     "FROM messages m JOIN users u ON m.sender_id = u.id " +
+                     "WHERE (m.sender_id = ? AND m.receiver_id = ?) OR " +
+                     "(m.sender_id = ? AND m.receiver_id = ?) " +
+                     "ORDER BY m.sent_at ASC";
+        int count = 0;
+        try (ConnectionPool.PooledConnection conn = JdbcConnectivity.getPool().borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
+            stmt.setInt(1, 1);
+            stmt.setInt(2, 2);
+            stmt.setInt(3, 2);
+            stmt.setInt(4, 1);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // What searching for a word in a room costs without SearchIndex; compare
+    // SearchIndexBenchmark.roomSearch
+    @Benchmark
+    public int legacyLikeSearch() throws SQLException {
+        String sql = "SELECT m.id FROM messages m WHERE m.room = ? AND m.message LIKE ? " +
+                     "ORDER BY m.id DESC LIMIT 20";
+        int count = 0;
+        try (ConnectionPool.PooledConnection conn = JdbcConnectivity.getPool().borrow()) {
+            PreparedStatement stmt = conn.prepare(sql);
+            stmt.setString(1, "room" + ThreadLocalRandom.current().nextInt(ROOMS));
+            stmt.setString(2, "%" + ThreadLocalRandom.current().nextInt(rows) + "%");
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void createSchema(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS users (id INT AUTO_INCREMENT PRIMARY KEY, " +
+                "username VARCHAR(50) NOT NULL UNIQUE, password_hash VARCHAR(255) NOT NULL, salt VARCHAR(255), " +
+                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, last_login TIMESTAMP NULL, is_online BOOLEAN DEFAULT FALSE)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS messages (id INT AUTO_INCREMENT PRIMARY KEY, " +
+                "sender_id INT NOT NULL, receiver_id INT NULL, room VARCHAR(64) NULL, " +
+                "message_type VARCHAR(16) NOT NULL, message TEXT NOT NULL, " +
+                "sent_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, room_seq BIGINT NULL, is_delivered BOOLEAN DEFAULT FALSE)");
+            stmt.execute("CREATE INDEX idx_messages_sender ON messages(sender_id)");
+            stmt.execute("CREATE INDEX idx_messages_receiver ON messages(receiver_id)");
+            stmt.execute("CREATE INDEX idx_messages_timestamp ON messages(sent_at)");
+            stmt.execute("CREATE INDEX idx_messages_conversation ON messages(sender_id, receiver_id, id)");
+            stmt.execute("CREATE INDEX idx_messages_room ON messages(room, id)");
+            stmt.execute("CREATE INDEX idx_messages_room_seq ON messages(room, room_seq)");
+        }
+    }
+
+    private void populate(Connection conn) throws SQLException {
+        conn.setAutoCommit(false);
+        try (PreparedStatement user = conn.prepareStatement(
+                "INSERT INTO users (username, password_hash) VALUES (?, 'x')")) {
+            for (int i = 1; i <= USERS; i++) {
+                user.setString(1, "user" + i);
+                user.addBatch();
+            }
+            user.executeBatch();
+        }
+        try (PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO messages (sender_id, receiver_id, room, message_type, message, room_seq, is_delivered) " +
+                "VALUES (?, ?, ?, ?, ?, ?, TRUE)")) {
+            for (long i = 0; i < rows; i++) {
+                int sender;
+                if (i % 100 == 0) {
+                    sender = (i / 100) % 2 == 0 ? 1 : 2;
+                    insert.setInt(2, 3 - sender);
+                    insert.setNull(3, java.sql.Types.VARCHAR);
+                    insert.setString(4, "PRIVATE");
+                    insert.setNull(6, java.sql.Types.BIGINT);
+                } else if (i % 2 == 0) {
+                    sender = (int) (i % USERS) + 1;
+                    insert.setInt(2, (int) ((i * 7) % USERS) + 1);
+                    insert.setNull(3, java.sql.Types.VARCHAR);
+                    insert.setString(4, "PRIVATE");
+                    insert.setNull(6, java.sql.Types.BIGINT);
+                } else {
+                    sender = (int) (i % USERS) + 1;
+                    insert.setNull(2, java.sql.Types.INTEGER);
+                    insert.setString(3, "room" + (i % ROOMS));
+                    insert.setString(4, "PUBLIC");
+                    insert.setLong(6, i + 1);
+                }
+                insert.setInt(1, sender);
+                insert.setString(5, "message " + i);
+                insert.addBatch();
+                if ((i + 1) % INSERT_BATCH == 0) {
+                    insert.executeBatch();
+                    conn.commit();
+                }
+            }
+            insert.executeBatch();
+            conn.commit();
+        }
+        conn.setAutoCommit(true);
+    }
+}
@@ -0,0 +1,95 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * SearchIndex queries over messages spread across ROOMS rooms, all written
+ * out to segments and reopened, so every query reads memory-mapped
+ * postings: one common word, two words that are each common but rarely
+ * together, and one word within a time range. Compare
+ * JdbcBenchmark.legacyLikeSearch for the scan this replaces.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchIndexBenchmark {
+    private static final int ROOMS = 100;
+    private static final int WORDS = 5_000;
+    private static final int WORDS_PER_MESSAGE = 8;
+    private static final int RESULTS = 20;
+    private static final long START_MILLIS = 1_700_000_000_000L;
+
+    @Param({"1000000"})
+    int messages;
+
+    private Path directory;
+    private SearchIndex index;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("search-bench");
+        SearchIndex writer = new SearchIndex(directory, 65536, 1_000_000, 60_000);
+        writer.start();
+        Random random = new Random(42);
+        for (int i = 0; i < messages; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < WORDS_PER_MESSAGE; w++) {
+                // Skewed towards the first words, like real text
+                text.append("word").append((int) (WORDS * Math.pow(random.nextDouble(), 3))).append(' ');
+            }
+            String room = "room" + (i % ROOMS);
+            ChatMessage message = new ChatMessage(0, "user" + (i % 1000), null, room, text.toString(),
+                ChatMessage.PUBLIC, START_MILLIS + i, true);
+            while (!writer.submit(HistoryCache.roomKey(room), message)) {
+                Thread.onSpinWait();
+            }
+        }
+        writer.close(600_000);
+        index = new SearchIndex(directory, 1024, 1_000_000, 60_000);
+        index.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close(10_000);
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public long[] commonWord() {
+        return index.search(room(), List.of("word0"), Long.MIN_VALUE, Long.MAX_VALUE, RESULTS);
+    }
+
+    @Benchmark
+    public long[] twoWords() {
+        return index.search(room(), List.of("word1", "word" + (50 + ThreadLocalRandom.current().nextInt(100))),
+            Long.MIN_VALUE, Long.MAX_VALUE, RESULTS);
+    }
+
+    @Benchmark
+    public long[] wordInRange() {
+        long from = START_MILLIS + ThreadLocalRandom.current().nextLong(messages - 100_000);
+        return index.search(room(), List.of("word" + ThreadLocalRandom.current().nextInt(20)), from, from + 100_000,
+            RESULTS);
+    }
+
+    private static String room() {
+        return HistoryCache.roomKey("room" + ThreadLocalRandom.current().nextInt(ROOMS));
+    }
+}
@@ -0,0 +1,24 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ChatServer.USERNAME_PATTERN, which every login is checked against, for
+ * a valid name and for names rejected early and late.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UsernameValidationBenchmark {
+    @Param({"alice_1984", "bad name", "averyveryverylongusername_x"})
+    String username;
+
+    @Benchmark
+    public boolean validate() {
+        return ChatServer.USERNAME_PATTERN.matcher(username).matches();
+    }
+}
@@ -9,8 +9,8 @@ USE chat_application;
 CREATE TABLE IF NOT EXISTS users(
     id INT AUTO_INCREMENT PRIMARY KEY,
     username VARCHAR(50) NOT NULL UNIQUE,
-    password_hash VARCHAR(255) NOT NULL,  -- For bcrypt hashed passwords
-    salt VARCHAR(255),  -- For password hashing
+    password_hash VARCHAR(255) NOT NULL,  -- PBKDF2 hash, see PasswordHasher.java
+    salt VARCHAR(255),  -- Base64 per-user salt
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     last_login TIMESTAMP NULL,
     is_online BOOLEAN DEFAULT FALSE,
@@ -22,9 +22,11 @@ CREATE TABLE IF NOT EXISTS messages (
     id INT AUTO_INCREMENT PRIMARY KEY,
     sender_id INT NOT NULL,
     receiver_id INT NULL COMMENT 'NULL for public messages',
+    room VARCHAR(64) NULL COMMENT 'Room for public messages',
     message_type ENUM('PUBLIC', 'PRIVATE', 'SYSTEM') NOT NULL,
     message TEXT NOT NULL,
     sent_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    room_seq BIGINT NULL COMMENT 'Sequence number within the room, epoch millis; see RoomSequences.java',
     is_delivered BOOLEAN DEFAULT FALSE,
     FOREIGN KEY (sender_id) REFERENCES users(id) ON DELETE CASCADE,
     FOREIGN KEY (receiver_id) REFERENCES users(id) ON DELETE SET NULL,
@@ -35,4 +37,9 @@ CREATE TABLE IF NOT EXISTS messages (
 CREATE INDEX idx_messages_sender ON messages(sender_id);
 CREATE INDEX idx_messages_receiver ON messages(receiver_id);
 CREATE INDEX idx_messages_timestamp ON messages(sent_at);
-CREATE INDEX idx_messages_type ON messages(message_type);
\ No newline at end of file
+CREATE INDEX idx_messages_type ON messages(message_type);
+-- Keyset pagination: one range scan per conversation direction / per room
+CREATE INDEX idx_messages_conversation ON messages(sender_id, receiver_id, id);
+CREATE INDEX idx_messages_room ON messages(room, id);
+-- Replaying what a reconnecting client missed in a room
+CREATE INDEX idx_messages_room_seq ON messages(room, room_seq);